@@ -22,8 +22,6 @@
 
 package de.anomic.ftpd;
 
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
@@ -52,7 +50,6 @@ public class ftpd {
     private static SimpleDateFormat currYearFormatter = new SimpleDateFormat("MMM dd HH:mm", Locale.ENGLISH);
     private static SimpleDateFormat prevYearFormatter = new SimpleDateFormat("MMM dd  yyyy", Locale.ENGLISH);
     private static final int nowYear = (new GregorianCalendar(TimeZone.getTimeZone("PST")).get(Calendar.YEAR));
-    public static final PrintWriter log = new PrintWriter(new OutputStreamWriter(System.out), true);
 
     // helper methods for date string in directory listing
     public static String fsDate(final Date d) {
@@ -353,12 +350,54 @@ public class ftpd {
             System.out.println(hline);
 
             try {
+                // content of often downloaded files; contentcache=0 switches it off
+                final serverContentCache cache = new serverContentCache(
+                        settings.getConfigInt("contentcache", 0),
+                        settings.getConfigInt("contentcachefilesize", 1048576));
+                final ftpdProtocolFactory handlers = new ftpdProtocolFactory(settings.getConfigInt("handlerpool", 100), cache);
                 final serverCore server = new serverCore(port,
-                        1000 /* max # sessions */,
+                        settings.getConfigInt("connections", 1000) /* max # sessions */,
                         0 /* control socket timeout in milliseconds */,
                         false /* terminate sleeping threads */,
-                        "de.anomic.ftpd.ftpdProtocol" /* protocol command class */,
+                        handlers /* protocol command objects */,
                         settings /* handed to command class */, loglevel /* loglevel */);
+                ((ftpdSwitchboard) settings).setServer(server);
+                // concurrent downloads of the same file share one reader
+                final serverSharedReader sharedReader = settings.getConfig("sharedread", "false").equals("true")
+                        ? new serverSharedReader(server.buffers(), settings.getConfigInt("sharedreadwindow", 16)) : null;
+                handlers.setSharedReader(sharedReader);
+                // passive data connections: the ports and the announced address are set up once
+                String portRange = settings.getConfig("passiveports", "");
+                if (portRange.length() == 0) portRange = settings.getConfig("dataport", "0");
+                final int[] range = serverPortRange.parse(portRange);
+                final boolean shared = settings.getConfig("passiveshared", "false").equals("true");
+                final serverPortRange ports = (range == null || range[0] == 0 || shared) ? null
+                        : new serverPortRange(range[0], range[1], settings.getConfig("passiveprebind", "false").equals("true"), ftpdProtocol.acceptTimeout);
+                final serverDataListener dataListener = (range == null || range[0] == 0 || !shared) ? null
+                        : new serverDataListener(range[0], range[1]);
+                final String datahost = settings.getConfig("datahost", null);
+                handlers.setPassive(ports, dataListener, (datahost == null) ? InetAddress.getLocalHost() : InetAddress.getByName(datahost), router_ip);
+                if (range != null && range[0] != 0) System.out.println("PASSIVE PORTS  : " + range[0] + "-" + range[1] + ((shared) ? ", shared" : ""));
+                // counters for monitoring tools
+                final serverMetrics metrics = new serverMetrics(server, settings);
+                metrics.setContentCache(cache);
+                metrics.setSharedReader(sharedReader);
+                metrics.setPassive(ports, dataListener);
+                if (settings.getConfig("jmx", "true").equals("true")) {
+                    metrics.register(Integer.toString(port));
+                }
+                final int metricsPort = settings.getConfigInt("metricsport", 0);
+                if (metricsPort > 0) {
+                    metrics.listen(metricsPort);
+                    System.out.println("METRICS        : http://127.0.0.1:" + metricsPort + "/metrics");
+                }
+                // on shutdown (i.e. SIGTERM) running transfers may complete first
+                final long drainTimeout = settings.getConfigInt("draintimeout", 60000);
+                Runtime.getRuntime().addShutdownHook(new Thread("ftpd drain") {
+                    public void run() {
+                        server.drain(drainTimeout);
+                    }
+                });
                 server.run(); // not concurrently on purpose here
             } catch (final Exception e) {
                 System.err.println("ERROR: " + e);
@@ -381,9 +381,8 @@ public class ftpdControl {
         // 1 - print also download/upload information
         // 2 - print every command received/sent on telnet channel
         if (level <= ftpd.loglevel) {
-            ftpd.log.println(serverCore.logDate() + " "
-                    + this.userAddress.getHostAddress() + slash
-                    + ((this.user == null) ? "-" : this.user) + " " + message);
+            serverLog.log(this.userAddress.getHostAddress() + slash
+                    + ((this.user == null) ? "-" : this.user), message);
         }
     }
 
@@ -662,9 +661,10 @@ public class ftpdControl {
                     + " CHMOD uuu <path>                   -- change access right of <path>\r\n"
                     + " JAVA <class> *<args>               -- call of a java main class with args\r\n"
                     + " SHUTDOWN                           -- can be used to shut down a Mac running OS 8/9\r\n"
+                    + " STATS                              -- server counters and command latencies\r\n"
                     + " UTIME <filename> <access-time> <modify-time> <create-time> UTC;  <time>=yyyyMMddHHmmss\r\n"
-                    + "200 " + ((ftpdPermissions.permissionExec(this.user)) ? "permission granted to use the JAVA/SHUTDOWN commands"
-                    : "the user must have set the exec flag in ftpd.groups to use the JAVA/SHUTDOWN commands"));
+                    + "200 " + ((ftpdPermissions.permissionExec(this.user)) ? "permission granted to use the JAVA/SHUTDOWN/STATS commands"
+                    : "the user must have set the exec flag in ftpd.groups to use the JAVA/SHUTDOWN/STATS commands"));
         else {
             if (command.equals("CHMOD")) {
                 if (!(ftpdPermissions.permissionWrite(this.user))) return "501 no permission to write";
@@ -795,6 +795,13 @@ public class ftpdControl {
                 } catch (final IOException e) {
                     return "501 class " + file + " not found";
                 }
+            } else if (command.equals("STATS")) {
+                if (!(ftpdPermissions.permissionExec(this.user)))
+                    return "530 no permission to exec for this user. set exec flag in ftpd.groups";
+                final serverStatistics stats = statistics();
+                if (stats == null)
+                    return "501 no statistics available";
+                return stats(stats);
             } else if (command.equals("EXEC")) {
                 if (!(ftpdPermissions.permissionExec(this.user)))
                     return "530 no permission to exec for this user. set exec flag in ftpd.groups";
@@ -804,6 +811,141 @@ public class ftpdControl {
         }
     }
 
+    /**
+     * the counters and command latencies of the server; null if the handler has none
+     */
+    protected serverStatistics statistics() {
+        return null;
+    }
+
+    /**
+     * the transfer buffers of the server; null if the handler has none
+     */
+    protected serverBufferPool buffers() {
+        return null;
+    }
+
+    /**
+     * the open files of the server; null if the handler has none
+     */
+    protected serverChannelCache channels() {
+        return null;
+    }
+
+    /**
+     * the range of the passive data ports; null if the handler has none
+     */
+    protected serverPortRange ports() {
+        return null;
+    }
+
+    /**
+     * the shared passive data ports; null if the handler has none
+     */
+    protected serverDataListener dataListener() {
+        return null;
+    }
+
+    /**
+     * the cache of downloaded files; null if the handler has none
+     */
+    protected serverContentCache contentCache() {
+        return null;
+    }
+
+    /**
+     * the reader for concurrent downloads of the same file; null if the handler has none
+     */
+    protected serverSharedReader sharedReader() {
+        return null;
+    }
+
+    // format the statistics as a multi-line reply; latencies in microseconds
+    private String stats(final serverStatistics stats) {
+        final StringBuffer buf = new StringBuffer();
+        buf.append("200-server statistics, uptime ")
+                .append((System.currentTimeMillis() - stats.started()) / 1000).append(" seconds\r\n");
+        buf.append(" sessions ").append(stats.sessionCount())
+                .append(", running ").append(stats.runningCount()).append("\r\n");
+        buf.append(" logins ").append(stats.loginCount())
+                .append(", failed logins ").append(stats.failedLoginCount()).append("\r\n");
+        buf.append(" bytes in ").append(stats.bytesIn())
+                .append(", bytes out ").append(stats.bytesOut()).append("\r\n");
+        final serverBufferPool buffers = buffers();
+        if (buffers != null) {
+            buf.append(" buffers acquired ").append(buffers.acquiredCount())
+                    .append(", allocated ").append(buffers.missCount())
+                    .append(", dropped ").append(buffers.droppedCount())
+                    .append(", pooled ").append(buffers.pooledBytes())
+                    .append(" of ").append(buffers.limit()).append(" bytes\r\n");
+        }
+        final serverChannelCache channels = channels();
+        if (channels != null) {
+            buf.append(" open files ").append(channels.size())
+                    .append(" of ").append(channels.maxHandles())
+                    .append(", re-used ").append(channels.hitCount())
+                    .append(", opened ").append(channels.openCount())
+                    .append(", closed ").append(channels.closedCount()).append("\r\n");
+        }
+        final serverPortRange ports = ports();
+        if (ports != null) {
+            buf.append(" passive ports used ").append(ports.usedCount())
+                    .append(" of ").append(ports.size())
+                    .append(", taken ").append(ports.acquiredCount())
+                    .append(", none free ").append(ports.exhaustedCount()).append("\r\n");
+        }
+        final serverDataListener dataListener = dataListener();
+        if (dataListener != null) {
+            buf.append(" shared passive ports ").append(dataListener.size())
+                    .append(", waiting ").append(dataListener.waitingCount())
+                    .append(", matched ").append(dataListener.matchedCount())
+                    .append(", unexpected ").append(dataListener.unmatchedCount())
+                    .append(", all busy ").append(dataListener.busyCount())
+                    .append(", timed out ").append(dataListener.missedCount()).append("\r\n");
+        }
+        final serverContentCache cache = contentCache();
+        if (cache != null && cache.budget() > 0) {
+            buf.append(" content cache hits ").append(cache.hitCount())
+                    .append(", misses ").append(cache.missCount())
+                    .append(", evicted ").append(cache.evictedCount())
+                    .append(", files ").append(cache.size())
+                    .append(", used ").append(cache.used())
+                    .append(" of ").append(cache.budget()).append(" bytes\r\n");
+        }
+        final serverSharedReader reader = sharedReader();
+        if (reader != null) {
+            buf.append(" shared reads: chunks read ").append(reader.readCount())
+                    .append(", shared ").append(reader.sharedCount())
+                    .append(", fallen behind ").append(reader.fallbackCount()).append("\r\n");
+        }
+        buf.append(" latency [us]             count        p50        p99       p999        max\r\n");
+        statsLine(buf, "transfer", stats.transfers());
+        serverStatistics.histogram h;
+        for (int i = 0; i < stats.size(); i++) {
+            h = stats.command(i);
+            if (h.count() > 0) statsLine(buf, stats.name(i), h);
+        }
+        buf.append("200 end of statistics");
+        return buf.toString();
+    }
+
+    private static void statsLine(final StringBuffer buf, final String name, final serverStatistics.histogram h) {
+        buf.append(' ').append(name);
+        for (int i = name.length(); i < 19; i++) buf.append(' ');
+        pad(buf, h.count());
+        pad(buf, h.percentile(50.0));
+        pad(buf, h.percentile(99.0));
+        pad(buf, h.percentile(99.9));
+        pad(buf, h.max());
+        buf.append("\r\n");
+    }
+
+    private static void pad(final StringBuffer buf, final long value) {
+        final String v = Long.toString(value);
+        for (int i = v.length(); i < 11; i++) buf.append(' ');
+        buf.append(v);
+    }
+
     public String javaexec(String javaclass, final String[] args)
             throws IOException {
 
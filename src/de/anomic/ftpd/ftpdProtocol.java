@@ -22,22 +22,27 @@
 
 package de.anomic.ftpd;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
@@ -45,7 +50,12 @@ import java.util.StringTokenizer;
 public class ftpdProtocol extends ftpdControl implements serverHandler {
 
     // static objects
-    private static final int bufferSize = 4048;
+    private static final long transferChunk = 8 * 1024 * 1024; // max. bytes per transferTo call
+    static final int acceptTimeout = 3000; // max. waiting time for a passive data connection
+
+    // commands that are executed at once while a transfer runs in the background;
+    // all others wait until the transfer is done (see serverCommandTable)
+    public static final String[] concurrentCommands = {"ABOR", "NOOP", "STAT"};
 
     // class objects
     private serverCore.Session session; // holds the session object of the
@@ -56,6 +66,26 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
     private int dataport;               // from last PORT or PASV
     private ServerSocket ssock;         // in pasv mode the listening server
     private boolean passive = false;    // transfer initiated by port, otherwise with pasv
+    private long allocate = 0;          // size announced by ALLO for the next STOR; 0 = none
+    private long restart = 0;           // offset from REST for the next RETR or STOR
+    private serverContentCache cache;   // content of often downloaded files; null = none
+    private serverSharedReader sharedReader; // for concurrent downloads of the same file; null = none
+    private serverPortRange ports;      // ports for passive data connections; null = any free port
+    private serverDataListener dataListener; // shared ports for passive data connections; null = a port per transfer
+    private serverDataListener.expectation expected; // in pasv mode with shared ports the announced connection
+    private InetAddress passiveHost;    // the address that PASV announces; null = resolve on every PASV
+    private String passiveAddress;      // passiveHost in the notation of the PASV reply
+    private volatile Socket data;       // the data connection of the running transfer; null = none
+    private volatile boolean aborted;   // ABOR has closed the data connection of the running transfer
+    private volatile String transferName; // the file of the running transfer, for STAT; null = none
+    private long transferSize;          // bytes of the running transfer; -1 = unknown
+    private long transferStart;         // time when the running transfer has started
+
+    // the part of RETR, STOR, LIST and NLST that moves the data
+    private interface transfer {
+        // @return the final reply of the command
+        public String run() throws IOException;
+    }
 
     // class methods
     public ftpdProtocol() {
@@ -81,6 +111,36 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         init();
     }
 
+    // set by the ftpdProtocolFactory; the cache and the reader are shared by all handlers
+    void setContentCache(final serverContentCache cache) {
+        this.cache = cache;
+    }
+
+    void setSharedReader(final serverSharedReader sharedReader) {
+        this.sharedReader = sharedReader;
+    }
+
+    void setPassive(final serverPortRange ports, final serverDataListener dataListener, final InetAddress host, final String address) {
+        this.ports = ports;
+        this.dataListener = dataListener;
+        this.passiveHost = host;
+        this.passiveAddress = address;
+    }
+
+    // release everything that belongs to the last session so that
+    // the ftpdProtocolFactory can re-use this object for a new session
+    void reset() {
+        closePassive();
+        this.session = null;
+        this.user = null;
+        this.userAddress = null;
+        this.renameFrom = null;
+        this.datahost = null;
+        this.dataport = 0;
+        this.passive = false;
+        init();
+    }
+
     public String greeting() { // OBLIGATORIC FUNCTION
         // a response line upon connection is send to client
         // if no response line is wanted, return "" or null
@@ -102,7 +162,7 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
             return "450 i/o timeout"; // or 421?
         else if (e instanceof NoSuchMethodException) {
             //e.printStackTrace();
-            return "550 command not implemented";
+            return "502 command not implemented";
         } else {
             // e.printStackTrace();
             return "550 " + e;
@@ -111,6 +171,8 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
 
     private void init() {
         this.state = 0;
+        this.allocate = 0;
+        this.restart = 0;
         this.userWD = ftpdControl.slash;
         this.opts = new Hashtable();
     }
@@ -121,19 +183,259 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
      * ' ') if (++n >= request.length()) return ""; return request.substring(n);
      * }
      */
-    private void copy(final OutputStream out, final InputStream in) throws IOException {
-        final InputStream bIn = new BufferedInputStream(in, bufferSize);
-        final OutputStream bOut = new BufferedOutputStream(out, bufferSize);
-        final byte buf[] = new byte[bufferSize];
+    // a channel based listener for passive data connections
+    private ServerSocket listen(final int port) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            final ServerSocket socket = channel.socket();
+            socket.bind(new InetSocketAddress(port));
+            socket.setSoTimeout(acceptTimeout);
+            return socket;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // open the data connection; its socket has a channel, which allows zero-copy transfers
+    private Socket dataConnection() throws IOException {
+        final Socket data;
+        if (this.passive) {
+            if (this.ssock == null && this.expected == null) throw new IOException("no passive listener");
+            try {
+                data = (this.expected != null) ? this.expected.accept(acceptTimeout) : this.ssock.accept();
+            } finally {
+                // the port is free for the next transfer
+                closePassive();
+            }
+            if (data == null) throw new SocketTimeoutException("no data connection from " + this.userAddress.getHostAddress());
+        } else {
+            data = SocketChannel.open(new InetSocketAddress(this.datahost, this.dataport)).socket();
+        }
+        data.setSoTimeout(ftpd.timeoutDataConnection);
+        return data;
+    }
+
+    // run the data transfer of a command through the session, in the background if so
+    // configured; the final reply is sent when the transfer is done, and the command returns
+    // an empty reply. A transfer whose data connection is closed by ABOR replies 426.
+    private String transfer(final Socket data, final String name, final long size, final transfer body) {
+        this.data = data;
+        this.aborted = false;
+        this.transferSize = size;
+        this.transferStart = System.currentTimeMillis();
+        this.transferName = name;
+        this.session.transfer(new Runnable() {
+            public void run() {
+                String reply;
+                try {
+                    reply = body.run();
+                    // a shutdown by ABOR looks like the end of an upload
+                    if (ftpdProtocol.this.aborted) reply = "426 connection closed; transfer aborted";
+                } catch (final Exception e) {
+                    reply = ftpdProtocol.this.aborted ? "426 connection closed; transfer aborted" : error(e);
+                } finally {
+                    ftpdProtocol.this.transferName = null;
+                    ftpdProtocol.this.data = null;
+                    try {
+                        data.close();
+                    } catch (final IOException e) {}
+                }
+                try {
+                    ftpdProtocol.this.session.writeLine(reply);
+                } catch (final IOException e) {
+                    // the control connection is gone
+                }
+            }
+        });
+        return "";
+    }
+
+    // send a file with FileChannel.transferTo; the operating system copies the
+    // bytes from the file to the socket without passing them through the heap
+    private void send(final WritableByteChannel out, final FileChannel in, final long offset) throws IOException {
+        final long start = System.nanoTime();
+        final long size = in.size();
+        long position = offset;
+        long n;
+        this.session.statistics().transferStarted();
+        try {
+            while (position < size) {
+                // the chunks are small enough to report progress to the stall detection
+                n = in.transferTo(position, Math.min(transferChunk, size - position), out);
+                if (n <= 0) break; // the file has been truncated
+                position += n;
+                this.session.transferred(n);
+            }
+        } finally {
+            this.session.statistics().transfer(false, position - offset, System.nanoTime() - start);
+        }
+    }
+
+    // send a file from the content cache; the buffer is off-heap and is written to the socket at once
+    private void send(final WritableByteChannel out, final ByteBuffer in) throws IOException {
+        final long start = System.nanoTime();
+        long total = 0;
         int n;
-        while ((n = bIn.read(buf)) > 0) {
-            bOut.write(buf, 0, n);
+        this.session.statistics().transferStarted();
+        try {
+            while (in.hasRemaining()) {
+                n = out.write(in);
+                this.session.transferred(n);
+                total += n;
+            }
+        } finally {
+            this.session.statistics().transfer(false, total, System.nanoTime() - start);
+        }
+    }
+
+    // send a file through a reader that is shared with the other downloads of the file;
+    // a download that falls out of the window of the reader continues with transferTo
+    private void send(final WritableByteChannel out, final serverSharedReader.reader in, final long offset) throws IOException {
+        final long start = System.nanoTime();
+        final long size = in.size();
+        long position = offset;
+        long n;
+        serverSharedReader.chunk c;
+        ByteBuffer b;
+        this.session.statistics().transferStarted();
+        try {
+            while (position < size && (c = in.pin(position)) != null) {
+                try {
+                    b = c.view(position);
+                    if (!b.hasRemaining()) break; // the file has been truncated
+                    while (b.hasRemaining()) {
+                        n = out.write(b);
+                        position += n;
+                        this.session.transferred(n);
+                    }
+                } finally {
+                    in.unpin(c);
+                }
+            }
+            while (position < size) {
+                n = in.channel().transferTo(position, Math.min(transferChunk, size - position), out);
+                if (n <= 0) break;
+                position += n;
+                this.session.transferred(n);
+            }
+        } finally {
+            this.session.statistics().transfer(false, position - offset, System.nanoTime() - start);
+        }
+    }
+
+    // receive a file through a pooled buffer, direct if so configured, so that the bytes
+    // are not copied into the heap; the buffer is written to the file when it is full.
+    // The file is cut after the received bytes, also if it had been pre-allocated.
+    private void receive(final FileChannel out, final SocketChannel in, final long offset, final long size) throws IOException {
+        final long start = System.nanoTime();
+        final ByteBuffer buffer = this.session.buffers().acquireForChannel(size);
+        long position = offset;
+        boolean eof = false;
+        int n;
+        this.session.statistics().transferStarted();
+        try {
+            while (!eof) {
+                while (buffer.hasRemaining()) {
+                    n = in.read(buffer);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    this.session.transferred(n);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                buffer.clear();
+            }
+        } finally {
+            this.session.buffers().release(buffer);
+            try {
+                if (out.size() > position) out.truncate(position);
+            } catch (final IOException e) {}
+            this.session.statistics().transfer(true, position - offset, System.nanoTime() - start);
+        }
+    }
+
+    // copy a stream through a pooled buffer of the expected size
+    private void copy(final OutputStream out, final InputStream in, final boolean incoming, final long size) throws IOException {
+        final long start = System.nanoTime();
+        final ByteBuffer buffer = this.session.buffers().acquire(size);
+        final byte buf[] = buffer.array();
+        long total = 0;
+        int n;
+        this.session.statistics().transferStarted();
+        try {
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+                this.session.transferred(n);
+                total += n;
+            }
+            in.close();
+            out.close();
+        } finally {
+            this.session.buffers().release(buffer);
+            this.session.statistics().transfer(incoming, total, System.nanoTime() - start);
         }
-        bIn.close();
-        bOut.close();
+    }
+
+    protected serverStatistics statistics() {
+        return this.session.statistics();
+    }
+
+    protected serverBufferPool buffers() {
+        return this.session.buffers();
+    }
+
+    protected serverChannelCache channels() {
+        return this.session.channels();
+    }
+
+    protected serverPortRange ports() {
+        return this.ports;
+    }
+
+    protected serverDataListener dataListener() {
+        return this.dataListener;
+    }
+
+    protected serverContentCache contentCache() {
+        return this.cache;
+    }
+
+    protected serverSharedReader sharedReader() {
+        return this.sharedReader;
+    }
+
+    public String ABOR(final String arg) throws IOException {
+        // close the data connection of a running transfer; the transfer replies 426, then ABOR replies
+        final Socket data = this.data;
+        if (data != null) {
+            this.aborted = true;
+            // a blocking transferTo or read is only woken up by a shutdown of the socket, not by close()
+            try {
+                data.shutdownInput();
+                data.shutdownOutput();
+            } catch (final IOException e) {}
+            data.close();
+        }
+        this.session.awaitTransfer();
+        closePassive();
+        if (this.state > 2) this.state = 2;
+        return "226 ABOR successful";
     }
 
     public String ALLO(final String arg) throws IOException {
+        // ALLO <size> [R <record size>]; the size is used to pre-allocate the file of the next STOR
+        final String size = car(arg);
+        if (size == null || size.length() == 0) return "501 syntax error";
+        try {
+            this.allocate = Math.max(0, Long.parseLong(size));
+        } catch (final NumberFormatException e) {
+            return "501 syntax error";
+        }
         return "200 ok";
     }
 
@@ -147,7 +449,7 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if (!dir.isDirectory() || !dir.canRead()) return "550 \"" + path + "\" bad path";
         this.userWD = s;
         if (this.userWD.length() == 0) this.userWD = ftpdControl.slash;
-        printlog(3, " INFO: new server-path " + dir.toString());
+        if (ftpd.loglevel >= 3) printlog(3, " INFO: new server-path " + dir.toString());
         return "250 \"" + this.userWD + "\" is working directory";
     }
 
@@ -157,7 +459,7 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if (this.userWD.equals(s)) return "550 CDUP not applicable; path is root";
         this.userWD = s;
         if (s.length() == 0) this.userWD = ftpdControl.slash;
-        printlog(3, " INFO: new server-path " + serverFile(this.userWD));
+        if (ftpd.loglevel >= 3) printlog(3, " INFO: new server-path " + serverFile(this.userWD));
         return "250 \"" + this.userWD + "\" is working directory";
     }
 
@@ -167,7 +469,9 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if (path.length() == 0) return "501 syntax error";
         final File file = serverFile(path);
         if (!eventDeleteFilePre(file)) return "550 no permission to delete";
+        this.session.channels().invalidate(file); // an open file cannot be deleted on every platform
         if (!file.isDirectory() && file.delete()) {
+            if (this.cache != null) this.cache.invalidate(file);
             eventDeleteFilePost(file);
             return "250 " + appendUserFile(path) + " deleted";
         } else {
@@ -184,51 +488,62 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         this.datahost = InetAddress.getByName(st.nextToken());
         this.dataport = Integer.parseInt(st.nextToken());
         
+        closePassive();
         this.state = 3;
         this.passive = false;
         return "200 received EPRT";
     }
     
-    public String EPSV(final String arg) throws IOException, UnknownHostException {
-        // we ignore the optional net-prt argument, it is not needed here
-        
-        // create a data socket and bind it to free port available
-        this.dataport = this.switchboard.getConfigInt("dataport", 0);
-        if (this.dataport != 0 && this.ssock != null && this.ssock.isBound() && this.ssock.getLocalPort() == this.dataport) {
-            // we already have a server socket at the right address
-        } else while (true) {
-            try { 
-                this.ssock = new ServerSocket(this.dataport);
-                this.ssock.setSoTimeout(3000);
-                this.ssock.setReuseAddress(this.switchboard.getConfigInt("dataport", 0) != 0);
-                break;
-            } catch (final Exception e) {
-                e.printStackTrace();
-                if (this.switchboard.getConfigInt("dataport", 0) == 0) {
-                    this.dataport++;
-                } else try {Thread.sleep(500);} catch (InterruptedException e1) {}
-                continue;
-            }
+    // open a listener for a passive data connection, or expect the connection on a shared
+    // port; false if all ports of the range, or of the client on the shared ports, are taken
+    private boolean passive() throws IOException {
+        closePassive();
+        if (this.dataListener != null) {
+            this.expected = this.dataListener.expect(this.userAddress, acceptTimeout);
+            if (this.expected == null) return false;
+            this.dataport = this.expected.port();
+        } else {
+            this.ssock = (this.ports == null) ? listen(0) : this.ports.acquire();
+            if (this.ssock == null) return false;
+            this.dataport = this.ssock.getLocalPort();
         }
-
-        // get port socket has been bound to
-        this.dataport = this.ssock.getLocalPort();
-        //System.out.println("DATAPORT = " + this.dataport);
-        
-        // client ip
-        String datahostcnfg = this.switchboard.getConfig("datahost", null);
-        this.datahost = (datahostcnfg == null) ? InetAddress.getLocalHost() : InetAddress.getByName(datahostcnfg);
-
-        // send port command via control socket:
-        // four ip address shorts encoded and two port shorts encoded
+        if (this.passiveHost == null) {
+            // not configured by the factory: resolve the address now
+            final String datahostcnfg = this.switchboard.getConfig("datahost", null);
+            this.passiveHost = (datahostcnfg == null) ? InetAddress.getLocalHost() : InetAddress.getByName(datahostcnfg);
+            this.passiveAddress = ftpdProtocolFactory.passiveAddress((ftpd.router_ip == null) ? this.passiveHost : ftpd.router_ip);
+        }
+        this.datahost = this.passiveHost;
         this.state = 3;
         this.passive = true;
+        return true;
+    }
+
+    // give the passive listener back, if there is one
+    private void closePassive() {
+        if (this.expected != null) {
+            this.expected.cancel();
+            this.expected = null;
+        }
+        if (this.ssock == null) return;
+        if (this.ports != null && this.ports.contains(this.ssock)) {
+            this.ports.release(this.ssock);
+        } else try {
+            this.ssock.close();
+        } catch (final IOException e) {}
+        this.ssock = null;
+    }
+
+    public String EPSV(final String arg) throws IOException, UnknownHostException {
+        // we ignore the optional net-prt argument, it is not needed here
+        if (this.state < 2) return "530 not logged in";
+        if (!passive()) return "425 no free data port, try again later";
         return "229 Entering Extended Passive Mode (|||" + this.dataport + "|)";
     }
     
     public String FEAT(final String arg) throws IOException {
         return "211-Recognized extended commands:\r\n" + " MDTM\r\n"
-                + " MFMT\r\n" + " SIZE\r\n" + " UTF8\r\n" +
+                + " MFMT\r\n" + " REST STREAM\r\n" + " SIZE\r\n" + " UTF8\r\n" +
                 // " XCUP\r\n" +
                 // " XMKD\r\n" +
                 // " XPWD\r\n" +
@@ -239,9 +554,9 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
 
     public String HELP(final String arg) throws IOException {
         return "214-Recognized commands:\r\n"
-                + "    ALLO  CWD   CDUP  DELE  EPRT  EPSV  FEAT  HELP  OPTS\r\n"
-                + "    LIST  MDTM  MFMT  MKD   NLST  NOOP  PASS\r\n"
-                + "    PASV  PORT  PWD   QUIT  RETR  RNFR  RNTO\r\n"
+                + "    ABOR  ALLO  CWD   CDUP  DELE  EPRT  EPSV  FEAT  HELP\r\n"
+                + "    OPTS  LIST  MDTM  MFMT  MKD   NLST  NOOP  PASS\r\n"
+                + "    PASV  PORT  PWD   QUIT  REST  RETR  RNFR  RNTO\r\n"
                 + "    RMD   SITE  SIZE  STAT  STOR  SYST  TYPE\r\n"
                 + "    UTF8  USER  XCUP  XMKD  XPWD  XRMD\r\n"
                 + "214 see www.anomic.de for latest version of AnomicFTPD!";
@@ -265,19 +580,17 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         final String listing = ls(file, "", full); // nullpointer exception
         this.session.writeLine("150 opening ASCII data connection");
         // distinguish active or passive mode
-        Socket data;
-        if (this.passive) {
-            data = this.ssock.accept();
-        } else {
-            data = new Socket(this.datahost, this.dataport);
-        }
-        data.setSoTimeout(ftpd.timeoutDataConnection);
-        final PrintWriter pout = new PrintWriter(new OutputStreamWriter(data.getOutputStream()));
-        pout.print(listing);
-        pout.flush();
-        data.close();
-        this.state = 2;
-        return "226 closing data connection";
+        final Socket data = dataConnection();
+        return transfer(data, appendUserFile(path), listing.length(), new transfer() {
+            public String run() throws IOException {
+                final PrintWriter pout = new PrintWriter(new OutputStreamWriter(data.getOutputStream()));
+                pout.print(listing);
+                pout.flush();
+                if (pout.checkError()) throw new SocketException("data connection closed");
+                ftpdProtocol.this.state = 2;
+                return "226 closing data connection";
+            }
+        });
     }
 
     public String MDTM(final String arg) throws IOException {
@@ -375,7 +688,7 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
             printlog(0, "user \"" + this.user + "\": attempt to log in denied");
             this.state = 0;
             if (penaltyWait > 0) {
-                this.session.penaltySleep(penaltyWait);
+                this.session.penaltyDelay(penaltyWait);
             }
             return "530 authorization failed. not logged in";
         }
@@ -405,58 +718,17 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
             this.session.successfulLogin();
             // userRights = new ftpdPermissions(user);
             printlog(0, "user \"" + this.user + "\": logged in");
-            printlog(3, "INFO: root for user \"" + this.user + "\":" + root.toString());
+            if (ftpd.loglevel >= 3) printlog(3, "INFO: root for user \"" + this.user + "\":" + root.toString());
             this.state = 2;
             return "230 logged in";
         }
     }
 
     public String PASV(final String arg) throws IOException {
-        // create a data socket and bind it to free port available
-        this.dataport = this.switchboard.getConfigInt("dataport", 0);
-        if (this.dataport != 0 && this.ssock != null && this.ssock.isBound() && this.ssock.getLocalPort() == this.dataport) {
-            // we already have a server socket at the right address
-        } else while (true) {
-            try { 
-                this.ssock = new ServerSocket(this.dataport);
-                this.ssock.setSoTimeout(3000);
-                this.ssock.setReuseAddress(this.switchboard.getConfigInt("dataport", 0) != 0);
-                break;
-            } catch (final Exception e) {
-                e.printStackTrace();
-                if (this.switchboard.getConfigInt("dataport", 0) == 0) {
-                    this.dataport++;
-                } else try {Thread.sleep(500);} catch (InterruptedException e1) {}
-                continue;
-            }
-        }
-
-        // get port socket has been bound to
-        this.dataport = this.ssock.getLocalPort();
-        //System.out.println("DATAPORT = " + this.dataport);
-        
-        // client ip
-        String datahostcnfg = this.switchboard.getConfig("datahost", null);
-        this.datahost = (datahostcnfg == null) ? InetAddress.getLocalHost() : InetAddress.getByName(datahostcnfg);
-        
-        // save ip address in high byte order
-        final byte[] Bytes = (ftpd.router_ip == null) ? this.datahost.getAddress() : ftpd.router_ip.getAddress();
-
-        // bytes greater than 127 should not be printed as negative
-        final short Shorts[] = new short[4];
-        for (int i = 0; i < 4; i++) {
-            Shorts[i] = Bytes[i];
-            if (Shorts[i] < 0) {
-                Shorts[i] += 256;
-            }
-        }
-
-        // send port command via control socket:
+        if (this.state < 2) return "530 not logged in";
+        if (!passive()) return "425 no free data port, try again later";
         // four ip address shorts encoded and two port shorts encoded
-        this.state = 3;
-        this.passive = true;
-        return "227 Entering Passive Mode (" + Shorts[0] + "," + Shorts[1]
-                + "," + Shorts[2] + "," + Shorts[3] + ","
+        return "227 Entering Passive Mode (" + this.passiveAddress + ","
                 + ((this.dataport & 0xff00) >> 8) + ","
                 + (this.dataport & 0x00ff) + ")";
     }
@@ -476,6 +748,7 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if (high < 0 || high > 255 || low < 0 || low > 255)
             return "501 syntax error";
         this.dataport = (high << 8) + low;
+        closePassive();
         this.state = 3;
         this.passive = false;
         return "200 received PORT";
@@ -483,7 +756,7 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
 
     public String PWD(final String arg) throws IOException {
         if (this.state < 2) return "530 not logged in";
-        printlog(3, "INFO: new server-path " + this.userWD);
+        if (ftpd.loglevel >= 3) printlog(3, "INFO: new server-path " + this.userWD);
         return "257 \"" + this.userWD + "\" is working directory";
     }
 
@@ -491,9 +764,22 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         return "!221 goodbye";
     }
 
-    /*
-     * public String REST(String arg) throws IOException { }
-     */
+    public String REST(final String arg) throws IOException {
+        // the offset applies to the next RETR or STOR; transfers are always
+        // binary, so the offset counts the bytes of the file as SIZE does
+        if (this.state < 2) return "530 not logged in";
+        try {
+            this.restart = Long.parseLong(arg.trim());
+        } catch (final NumberFormatException e) {
+            this.restart = 0;
+            return "501 syntax error";
+        }
+        if (this.restart < 0) {
+            this.restart = 0;
+            return "501 syntax error";
+        }
+        return "350 restarting at " + this.restart + ". send RETR or STOR to initiate transfer";
+    }
 
     public String REIN(final String arg) throws IOException {
         init();
@@ -507,7 +793,6 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
 
     public String RETR(final String arg) throws IOException {
         // retrieve file
-        // still missing: effect of REST command
         if (this.state < 2)
             return "530 not logged in";
         if (this.state == 2)
@@ -532,31 +817,68 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if ((indexCreated) || ((file.isFile()) && (file.exists()))) {
             // long start =
             // GregorianCalendar.getInstance(GMTTimeZone).getTime().getTime();
-            final InputStream in = indexCreated ? ind : new FileInputStream(file);
-            final long filelength = indexCreated ? in.available() : file.length();
-            this.session.writeLine("150 opening BINARY data connection for " + appendUserFile(path) + ", " + filelength + " bytes");
-            // active or passive?
-            Socket data;
-            if (this.passive) {
-                data = this.ssock.accept();
-            } else {
-                data = new Socket(this.datahost, this.dataport);
+            final long restart = this.restart;
+            this.restart = 0;
+            // small files that are often downloaded are served from the content cache
+            final ByteBuffer cached = (indexCreated || this.cache == null) ? null : this.cache.get(file);
+            // concurrent downloads of a large file share one reader
+            final serverSharedReader.reader shared = (indexCreated || cached != null || this.sharedReader == null
+                    || file.length() <= serverBufferPool.maxSize) ? null : this.sharedReader.open(file);
+            // otherwise the file is read through a channel that other sessions may use at the same time
+            final serverChannelCache.handle handle = (indexCreated || cached != null || shared != null) ? null : this.session.channels().acquire(file);
+            final InputStream in = indexCreated ? ind : null;
+            final long filelength = (cached != null) ? cached.remaining() : (shared != null) ? shared.size()
+                    : (handle != null) ? handle.channel().size() : in.available();
+            if (restart > filelength) {
+                close(in, shared, handle);
+                return "554 restart position " + restart + " beyond end of file";
             }
-            data.setSoTimeout(ftpd.timeoutDataConnection);
-            copy(data.getOutputStream(), in);
-            in.close();
-            data.close();
-            if (this.passive) {
-                this.ssock.close();
-                this.ssock = null;
+            if (restart > 0 && indexCreated) in.skip(restart);
+            this.session.writeLine("150 opening BINARY data connection for " + appendUserFile(path) + ", " + filelength + " bytes"
+                    + ((restart > 0) ? ", restarting at " + restart : ""));
+            // active or passive?
+            final Socket data;
+            try {
+                data = dataConnection();
+            } catch (final IOException e) {
+                close(in, shared, handle);
+                throw e;
             }
-            eventDownloadFilePost(file, filelength);
-            this.state = 2;
-            return "226 closing data connection";
+            return transfer(data, appendUserFile(path), filelength - restart, new transfer() {
+                public String run() throws IOException {
+                    try {
+                        final WritableByteChannel out = (data.getChannel() != null) ? data.getChannel() : Channels.newChannel(data.getOutputStream());
+                        if (cached != null) {
+                            cached.position((int) restart);
+                            send(out, cached);
+                        } else if (shared != null) {
+                            send(out, shared, restart);
+                        } else if (handle != null) {
+                            // a real file: zero-copy
+                            send(out, handle.channel(), restart);
+                        } else {
+                            // virtual content like a generated index
+                            copy(data.getOutputStream(), in, false, filelength - restart);
+                        }
+                    } finally {
+                        close(in, shared, handle);
+                    }
+                    eventDownloadFilePost(file, filelength - restart);
+                    ftpdProtocol.this.state = 2;
+                    return "226 closing data connection";
+                }
+            });
         } else
             return "550 \"" + path + "\" bad path";
     }
 
+    // give back what RETR has opened; every argument may be null
+    private void close(final InputStream in, final serverSharedReader.reader shared, final serverChannelCache.handle handle) throws IOException {
+        this.session.channels().release(handle);
+        if (shared != null) shared.close();
+        if (in != null) in.close();
+    }
+
     public String RNFR(final String arg) throws IOException {
         if (this.state < 2) return "530 not logged in";
         final String path = decodeChar(arg);
@@ -579,7 +901,12 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if (!eventRenameFilePre(from)) return "550 no write permission";
         final File to = serverFile(path);
         if (!to.exists()) {
+            this.session.channels().invalidate(from); // an open file cannot be renamed on every platform
             if (from.renameTo(to)) {
+                if (this.cache != null) {
+                    this.cache.invalidate(from);
+                    this.cache.invalidate(to);
+                }
                 eventRenameFilePost(to);
                 return "250 \"" + appendUserFile(this.renameFrom) + "\" renamed to \"" + appendUserFile(path) + "\"";
             } else
@@ -663,6 +990,15 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
             buf.append("     logged in as " + this.user + "\n");
             buf.append("     type binary\n");
         }
+        final String name = this.transferName;
+        if (name != null) {
+            // the progress of the transfer that runs in the background
+            final long bytes = this.session.transferred();
+            final long time = Math.max(1, System.currentTimeMillis() - this.transferStart);
+            buf.append("     transfer of " + name + ": " + bytes
+                    + ((this.transferSize >= 0) ? " of " + this.transferSize : "") + " bytes in "
+                    + (time / 1000) + " seconds, " + (bytes * 1000 / time / 1024) + " KB/s\n");
+        }
         buf.append("211 end of status");
         return buf.toString();
     }
@@ -679,22 +1015,45 @@ public class ftpdProtocol extends ftpdControl implements serverHandler {
         if (!eventUploadFilePre(file))
             return "532 no write permission";
         if (!file.isDirectory()) {
-            this.session.writeLine("125 opening BINARY data connection");
-            Socket data;
-            if (this.passive) {
-                data = this.ssock.accept();
-            } else {
-                data = new Socket(this.datahost, this.dataport);
+            final long allocate = this.allocate;
+            this.allocate = 0;
+            final long restart = this.restart;
+            this.restart = 0;
+            if (restart > file.length())
+                return "554 restart position " + restart + " beyond end of file";
+            this.session.writeLine("125 opening BINARY data connection"
+                    + ((restart > 0) ? ", restarting at " + restart : ""));
+            final Socket data = dataConnection();
+            final RandomAccessFile fout;
+            try {
+                fout = new RandomAccessFile(file, "rw");
+            } catch (final IOException e) {
+                data.close();
+                throw e;
             }
-            data.setSoTimeout(ftpd.timeoutDataConnection);
-            final FileOutputStream fout = new FileOutputStream(file);
-            copy(fout, data.getInputStream());
-            fout.close();
-            data.close();
-            eventUploadFilePost(file, file.length());
-            this.state = 2;
-            return "226 closing data connection for " + appendUserFile(path) + ", "
-                    + file.length() + " bytes";
+            return transfer(data, appendUserFile(path), -1, new transfer() {
+                public String run() throws IOException {
+                    try {
+                        // without REST the file is replaced; with REST it is continued at the offset
+                        fout.setLength(restart);
+                        if (restart == 0 && allocate > 0 && allocate < file.getAbsoluteFile().getParentFile().getUsableSpace()
+                                && ftpdProtocol.this.switchboard.getConfig("preallocate", "true").equals("true")) {
+                            // reserve the announced size at once; receive() cuts off the rest
+                            fout.setLength(allocate);
+                        }
+                        receive(fout.getChannel(), data.getChannel(), restart, (allocate > 0) ? allocate : serverBufferPool.maxSize);
+                    } finally {
+                        fout.close();
+                        data.close();
+                        if (ftpdProtocol.this.cache != null) ftpdProtocol.this.cache.invalidate(file);
+                        ftpdProtocol.this.session.channels().invalidate(file);
+                    }
+                    eventUploadFilePost(file, file.length());
+                    ftpdProtocol.this.state = 2;
+                    return "226 closing data connection for " + appendUserFile(path) + ", "
+                            + file.length() + " bytes";
+                }
+            });
         } else
             return "550 \"" + path + "\" bad path";
     }
@@ -0,0 +1,129 @@
+/**
+ *  ftpdProtocolFactory
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *  
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+public class ftpdProtocolFactory implements serverHandlerFactory {
+
+    private final ftpdProtocol[] pool; // terminated handlers that can be re-used
+    private int pooled;                // number of handlers in the pool
+    private final serverContentCache cache; // shared by all handlers; null = none
+    private serverSharedReader sharedReader; // shared by all handlers; null = none
+    private serverPortRange ports;      // passive data ports; null = any free port
+    private serverDataListener dataListener; // shared passive data ports; null = a port per transfer
+    private InetAddress passiveHost;    // the address that PASV announces; null = resolved by the handlers
+    private String passiveAddress;      // passiveHost as in the PASV reply
+
+    /**
+     * @param poolSize max. number of terminated handlers that are kept for re-use; 0 = no pool
+     */
+    public ftpdProtocolFactory(final int poolSize) {
+        this(poolSize, null);
+    }
+
+    /**
+     * @param poolSize max. number of terminated handlers that are kept for re-use; 0 = no pool
+     * @param cache the cache for downloads, or null
+     */
+    public ftpdProtocolFactory(final int poolSize, final serverContentCache cache) {
+        this.pool = new ftpdProtocol[Math.max(0, poolSize)];
+        this.pooled = 0;
+        this.cache = cache;
+    }
+
+    public serverContentCache contentCache() {
+        return this.cache;
+    }
+
+    /**
+     * let concurrent downloads of the same file share a reader; must be set before the server runs
+     * @param sharedReader the reader, or null
+     */
+    public void setSharedReader(final serverSharedReader sharedReader) {
+        this.sharedReader = sharedReader;
+    }
+
+    public Class handlerClass() {
+        return ftpdProtocol.class;
+    }
+
+    /**
+     * set the ports and the address for passive data connections; must be set before the server runs
+     * @param ports the range of the data ports, or null for any free port
+     * @param dataListener the shared data ports, or null for a port per transfer; replaces the range
+     * @param host the address that PASV announces
+     * @param announced the address that PASV announces instead of the host, i.e. of a NAT router, or null
+     */
+    public void setPassive(final serverPortRange ports, final serverDataListener dataListener, final InetAddress host, final InetAddress announced) {
+        this.ports = ports;
+        this.dataListener = dataListener;
+        this.passiveHost = host;
+        this.passiveAddress = passiveAddress((announced == null) ? host : announced);
+    }
+
+    /**
+     * @return an address in the notation of the PASV reply, i.e. '192,168,0,1'
+     */
+    static String passiveAddress(final InetAddress address) {
+        // bytes greater than 127 should not be printed as negative
+        final byte[] b = address.getAddress();
+        return (b[0] & 0xff) + "," + (b[1] & 0xff) + "," + (b[2] & 0xff) + "," + (b[3] & 0xff);
+    }
+
+    public serverPortRange ports() {
+        return this.ports;
+    }
+
+    public serverDataListener dataListener() {
+        return this.dataListener;
+    }
+
+    public serverHandler newHandler(final serverCore.Session session, final serverSwitch switchboard) throws IOException {
+        ftpdProtocol handler = null;
+        synchronized (this.pool) {
+            if (this.pooled > 0) {
+                handler = this.pool[--this.pooled];
+                this.pool[this.pooled] = null;
+            }
+        }
+        if (handler == null) handler = new ftpdProtocol();
+        handler.setContentCache(this.cache);
+        handler.setSharedReader(this.sharedReader);
+        handler.setPassive(this.ports, this.dataListener, this.passiveHost, this.passiveAddress);
+        try {
+            handler.init(session, switchboard);
+        } catch (final IOException e) {
+            recycle(handler);
+            throw e;
+        }
+        return handler;
+    }
+
+    public void recycle(final serverHandler handler) {
+        final ftpdProtocol h = (ftpdProtocol) handler;
+        h.reset();
+        synchronized (this.pool) {
+            if (this.pooled < this.pool.length) this.pool[this.pooled++] = h;
+        }
+    }
+
+}
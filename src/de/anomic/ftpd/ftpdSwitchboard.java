@@ -27,9 +27,19 @@ import java.util.Hashtable;
 
 public class ftpdSwitchboard extends serverAbstractSwitch {
 
+	private serverCore server; // the server that is controlled by the actions
+
 	public ftpdSwitchboard(final String init, final String config)
 			throws IOException {
 		super(init, config);
+		this.server = null;
+	}
+
+	/**
+	 * @param server the server that the 'drain' action shuts down
+	 */
+	public void setServer(final serverCore server) {
+		this.server = server;
 	}
 
 	public static Hashtable loadHashtable(final String name) {
@@ -49,8 +59,42 @@ public class ftpdSwitchboard extends serverAbstractSwitch {
 		// future enhancements: no function now
 	}
 
+	/**
+	 * administrative actions:
+	 * 'reloadPermissions' - read ftpd.groups and ftpd.accounts again
+	 * 'drain' - stop accepting connections, let running commands complete within
+	 *           the 'timeout' of the input (default: setting draintimeout) and close all sessions
+	 * @return a 'result' message, or null if the action is unknown
+	 */
 	public Hashtable action(final String actionName, final Hashtable actionInput) {
-		// future enhancements: no function now
+		final Hashtable<String, String> result = new Hashtable<String, String>();
+		if (actionName.equals("reloadPermissions")) {
+			ftpdPermissions.loadPermissions();
+			result.put("result", "permissions reloaded");
+			return result;
+		}
+		if (actionName.equals("drain")) {
+			final serverCore s = this.server;
+			if (s == null) {
+				result.put("result", "no server running");
+				return result;
+			}
+			long timeout = getConfigInt("draintimeout", 60000);
+			if (actionInput != null && actionInput.get("timeout") != null) {
+				try {
+					timeout = Long.parseLong((String) actionInput.get("timeout"));
+				} catch (final NumberFormatException e) {}
+			}
+			final long t = timeout;
+			// the caller does not wait for the sessions
+			new Thread("ftpd drain") {
+				public void run() {
+					s.drain(t);
+				}
+			}.start();
+			result.put("result", "draining, timeout " + timeout + " milliseconds");
+			return result;
+		}
 		return null;
 	}
 
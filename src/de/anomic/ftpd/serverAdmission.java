@@ -0,0 +1,207 @@
+/**
+ *  serverAdmission
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverAdmission:
+
+ Decides if a new connection can be served. As long as fewer sessions than
+ the maximum are running, a connection is admitted at once. Otherwise it
+ waits in a bounded queue until a running session terminates; if the queue
+ is full, or a connection has waited longer than the max. queue time, the
+ connection is rejected. The controller only counts and queues; answering
+ and closing rejected connections is the job of the serverCore.
+ */
+
+package de.anomic.ftpd;
+
+import java.util.LinkedList;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverAdmission {
+
+	public static final int admitted = 0; // the connection can be served now
+	public static final int queued = 1; // the connection waits for a free session
+	public static final int rejected = 2; // the connection cannot be served
+
+	private final int maxSessions; // 0 = unlimited
+	private final int maxQueue; // max. number of waiting connections
+	private final long maxQueueTime; // max. waiting time in milliseconds
+	private final AtomicInteger sessions; // number of admitted, running sessions
+	private final LinkedList<entry> queue; // waiting connections, oldest first
+	private Vector<Object> stale; // connections that release() found expired
+	private final AtomicLong admittedCount; // connections that were admitted, directly or from the queue
+	private final AtomicLong queuedCount; // connections that had to wait
+	private final AtomicLong rejectedCount; // connections that were rejected because the queue was full
+	private final AtomicLong expiredCount; // connections that were rejected after waiting too long
+
+	// a waiting connection
+	private static class entry {
+		final Object item;
+		final long since;
+		entry(final Object item, final long since) {
+			this.item = item;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * @param maxSessions max. number of concurrent sessions; 0 = unlimited
+	 * @param maxQueue max. number of connections that wait for a session
+	 * @param maxQueueTime max. time in milliseconds that a connection waits
+	 */
+	public serverAdmission(final int maxSessions, final int maxQueue, final long maxQueueTime) {
+		this.maxSessions = maxSessions;
+		this.maxQueue = maxQueue;
+		this.maxQueueTime = maxQueueTime;
+		this.sessions = new AtomicInteger(0);
+		this.queue = new LinkedList<entry>();
+		this.stale = new Vector<Object>();
+		this.admittedCount = new AtomicLong(0);
+		this.queuedCount = new AtomicLong(0);
+		this.rejectedCount = new AtomicLong(0);
+		this.expiredCount = new AtomicLong(0);
+	}
+
+	/**
+	 * ask for a session
+	 * @param item the connection; it is stored in the queue if it has to wait
+	 * @return one of admitted, queued or rejected
+	 */
+	public int admit(final Object item) {
+		if (acquire()) {
+			this.admittedCount.incrementAndGet();
+			return admitted;
+		}
+		synchronized (this.queue) {
+			// a session may have terminated in between
+			if (this.queue.isEmpty() && acquire()) {
+				this.admittedCount.incrementAndGet();
+				return admitted;
+			}
+			if (this.queue.size() >= this.maxQueue) {
+				this.rejectedCount.incrementAndGet();
+				return rejected;
+			}
+			this.queue.addLast(new entry(item, System.currentTimeMillis()));
+		}
+		this.queuedCount.incrementAndGet();
+		return queued;
+	}
+
+	// count a new session if the limit allows it
+	private boolean acquire() {
+		if (this.maxSessions <= 0) {
+			this.sessions.incrementAndGet();
+			return true;
+		}
+		int s;
+		do {
+			s = this.sessions.get();
+			if (s >= this.maxSessions) return false;
+		} while (!this.sessions.compareAndSet(s, s + 1));
+		return true;
+	}
+
+	/**
+	 * a session has terminated; its place is handed over to the oldest waiting connection
+	 * @return the connection that can be served now, or null if nobody waits
+	 */
+	public Object release() {
+		synchronized (this.queue) {
+			final long now = System.currentTimeMillis();
+			entry e;
+			while (!this.queue.isEmpty()) {
+				e = this.queue.removeFirst();
+				if (now - e.since > this.maxQueueTime) {
+					// waited too long, it is rejected with the next call of expired()
+					this.stale.addElement(e.item);
+					continue;
+				}
+				this.admittedCount.incrementAndGet();
+				return e.item; // the session count stays the same
+			}
+			this.sessions.decrementAndGet();
+		}
+		return null;
+	}
+
+	/**
+	 * remove all connections that have waited too long
+	 * @return the connections that must be rejected
+	 */
+	public Vector<Object> expired() {
+		final Vector<Object> v;
+		final long now = System.currentTimeMillis();
+		synchronized (this.queue) {
+			v = this.stale;
+			this.stale = new Vector<Object>();
+			while (!this.queue.isEmpty()
+					&& now - this.queue.getFirst().since > this.maxQueueTime) {
+				v.addElement(this.queue.removeFirst().item);
+			}
+		}
+		this.expiredCount.addAndGet(v.size());
+		return v;
+	}
+
+	/**
+	 * remove all waiting connections, i.e. when the server shuts down
+	 * @return the connections that must be rejected
+	 */
+	public Vector<Object> drain() {
+		final Vector<Object> v = new Vector<Object>();
+		synchronized (this.queue) {
+			v.addAll(this.stale);
+			this.stale.clear();
+			while (!this.queue.isEmpty()) {
+				v.addElement(this.queue.removeFirst().item);
+			}
+		}
+		return v;
+	}
+
+	public int sessions() {
+		return this.sessions.get();
+	}
+
+	public int queueDepth() {
+		synchronized (this.queue) {
+			return this.queue.size();
+		}
+	}
+
+	public long admittedCount() {
+		return this.admittedCount.get();
+	}
+
+	public long queuedCount() {
+		return this.queuedCount.get();
+	}
+
+	public long rejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	public long expiredCount() {
+		return this.expiredCount.get();
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ *  serverBufferPool
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverBufferPool:
+
+ Transfer buffers that are shared by all sessions. A buffer is taken for a
+ transfer and given back afterwards, so that a busy server does not hand
+ a new buffer to the garbage collector with every transfer. There are size
+ classes from 4 KB up to 1 MB, each a factor of 4 larger than the one
+ before; a transfer asks for the size it needs, i.e. a listing for a few
+ KB and an upload for a large buffer, and gets a buffer of the smallest
+ class that holds it. Buffers are either on the heap, for transfers that
+ use streams, or direct, for transfers between channels which the
+ operating system can then read and write without an extra copy.
+ The pool only keeps buffers up to a memory limit; buffers that are given
+ back when the limit is reached are left to the garbage collector.
+ */
+
+package de.anomic.ftpd;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverBufferPool {
+
+	public static final int minSize = 4 * 1024; // size of the smallest class
+	public static final int maxSize = 1024 * 1024; // size of the largest class
+	private static final int classCount = 5; // 4K, 16K, 64K, 256K, 1M
+
+	private final freeList[] heap; // free heap buffers per class
+	private final freeList[] direct; // free direct buffers per class
+	private final long limit; // max. bytes of the free buffers
+	private final boolean useDirect; // channel transfers get direct buffers
+	private final AtomicLong pooled; // bytes of the free buffers
+	private final AtomicLong acquiredCount; // buffers that were requested
+	private final AtomicLong missCount; // requests that had to allocate a buffer
+	private final AtomicLong droppedCount; // buffers that were given back when the pool was full
+
+	// the free buffers of one class
+	private static class freeList extends ConcurrentLinkedQueue<ByteBuffer> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * @param limit max. bytes of the buffers that are kept
+	 * @param useDirect if true, transfers between channels use direct buffers
+	 */
+	public serverBufferPool(final long limit, final boolean useDirect) {
+		this.heap = new freeList[classCount];
+		this.direct = new freeList[classCount];
+		for (int i = 0; i < classCount; i++) {
+			this.heap[i] = new freeList();
+			this.direct[i] = new freeList();
+		}
+		this.limit = Math.max(0, limit);
+		this.useDirect = useDirect;
+		this.pooled = new AtomicLong(0);
+		this.acquiredCount = new AtomicLong(0);
+		this.missCount = new AtomicLong(0);
+		this.droppedCount = new AtomicLong(0);
+	}
+
+	// the class of a size; sizes above the largest class get the largest class
+	private static int sizeClass(final long size) {
+		int c = 0;
+		long s = minSize;
+		while (s < size && c < classCount - 1) {
+			s <<= 2;
+			c++;
+		}
+		return c;
+	}
+
+	/**
+	 * take a heap buffer, i.e. for a transfer with streams; the buffer has an array
+	 * @param size the number of bytes that shall be transferred, or an estimate
+	 * @return a cleared buffer with a capacity of at least min(size, maxSize)
+	 */
+	public ByteBuffer acquire(final long size) {
+		return acquire(size, false);
+	}
+
+	/**
+	 * take a buffer for a transfer between channels; it is direct if the pool is configured so
+	 * @param size the number of bytes that shall be transferred, or an estimate
+	 * @return a cleared buffer with a capacity of at least min(size, maxSize)
+	 */
+	public ByteBuffer acquireForChannel(final long size) {
+		return acquire(size, this.useDirect);
+	}
+
+	private ByteBuffer acquire(final long size, final boolean direct) {
+		this.acquiredCount.incrementAndGet();
+		final int c = sizeClass(size);
+		final ByteBuffer b = (direct ? this.direct[c] : this.heap[c]).poll();
+		if (b != null) {
+			this.pooled.addAndGet(-b.capacity());
+			b.clear();
+			return b;
+		}
+		this.missCount.incrementAndGet();
+		final int capacity = minSize << (2 * c);
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * give a buffer back; it must not be used any more afterwards
+	 * @param b a buffer from acquire(), or null
+	 */
+	public void release(final ByteBuffer b) {
+		if (b == null) return;
+		final int capacity = b.capacity();
+		final int c = sizeClass(capacity);
+		if ((minSize << (2 * c)) != capacity) return; // not one of ours
+		long p;
+		do {
+			p = this.pooled.get();
+			if (p + capacity > this.limit) {
+				this.droppedCount.incrementAndGet();
+				return;
+			}
+		} while (!this.pooled.compareAndSet(p, p + capacity));
+		(b.isDirect() ? this.direct[c] : this.heap[c]).add(b);
+	}
+
+	/**
+	 * @return the bytes of the buffers that are kept for re-use
+	 */
+	public long pooledBytes() {
+		return this.pooled.get();
+	}
+
+	public long limit() {
+		return this.limit;
+	}
+
+	public long acquiredCount() {
+		return this.acquiredCount.get();
+	}
+
+	/**
+	 * @return the number of requests that allocated a new buffer
+	 */
+	public long missCount() {
+		return this.missCount.get();
+	}
+
+	/**
+	 * @return the number of buffers that were left to the garbage collector because the pool was full
+	 */
+	public long droppedCount() {
+		return this.droppedCount.get();
+	}
+
+}
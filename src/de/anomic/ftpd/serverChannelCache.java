@@ -0,0 +1,253 @@
+/**
+ *  serverChannelCache
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverChannelCache:
+
+ Open files for reading that are shared by all sessions. A download takes
+ the channel of its file and gives it back when it is done; downloads of
+ the same file at the same time, i.e. the segments of a download manager,
+ use the same channel with positional reads instead of opening the file
+ once each. A channel that is not used any more stays open for a while,
+ so that the next download of the file does not have to open it again.
+ Files are identified by their canonical path; a channel is only used as
+ long as the file has the size and the modification time that it had when
+ it was opened, a changed file is opened again.
+ The number of channels that are kept open is limited: when the limit is
+ reached, the least recently used channel that is not in use is closed,
+ and channels that have not been used for some time are closed by the
+ expire() method, which the serverCore calls periodically.
+ Commands that change a file invalidate its channel; a channel that is in
+ use is closed when the last download gives it back.
+ With a limit of 0 a channel is closed as soon as it is given back.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverChannelCache {
+
+	private final int maxHandles; // max. number of open channels that are kept
+	private final long idleTime; // channels that are not used for that time are closed
+	private final LinkedHashMap<String, handle> handles; // canonical path -> handle, in access order
+	private final AtomicLong hitCount; // downloads that found their file open
+	private final AtomicLong openCount; // files that had been opened
+	private final AtomicLong closedCount; // channels that had been closed
+
+	/**
+	 * an open file
+	 */
+	public static class handle {
+		private final String key;
+		private final FileChannel channel;
+		private final long size;
+		private final long modified;
+		private int users = 0; // downloads that use the channel right now
+		private long released = 0; // time when the channel was given back the last time
+		private boolean cached = false; // in the cache; otherwise the channel is closed when it is not used any more
+
+		private handle(final String key, final FileChannel channel, final long size, final long modified) {
+			this.key = key;
+			this.channel = channel;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		/**
+		 * @return the channel; it must only be used with positional reads and transfers
+		 */
+		public FileChannel channel() {
+			return this.channel;
+		}
+	}
+
+	/**
+	 * @param maxHandles max. number of open files that are kept; 0 = every file is closed after use
+	 * @param idleTime files that are not used for that time in milliseconds are closed
+	 */
+	public serverChannelCache(final int maxHandles, final long idleTime) {
+		this.maxHandles = Math.max(0, maxHandles);
+		this.idleTime = idleTime;
+		this.handles = new LinkedHashMap<String, handle>(16, 0.75f, true);
+		this.hitCount = new AtomicLong(0);
+		this.openCount = new AtomicLong(0);
+		this.closedCount = new AtomicLong(0);
+	}
+
+	/**
+	 * take the channel of a file; it must be given back with release()
+	 * @param file an existing file
+	 */
+	public handle acquire(final File file) throws IOException {
+		if (this.maxHandles == 0) return open(null, file);
+		final String key = file.getCanonicalPath();
+		final long size = file.length();
+		final long modified = file.lastModified();
+		handle h;
+		synchronized (this) {
+			h = this.handles.get(key);
+			if (h != null && h.size == size && h.modified == modified) {
+				h.users++;
+				this.hitCount.incrementAndGet();
+				return h;
+			}
+			if (h != null) remove(h); // the file has changed
+		}
+		// open the file outside of the lock
+		h = open(key, file);
+		synchronized (this) {
+			final handle other = this.handles.get(key);
+			if (other != null && other.size == h.size && other.modified == h.modified) {
+				// another download has opened the file in the meantime
+				other.users++;
+				this.hitCount.incrementAndGet();
+				close(h);
+				return other;
+			}
+			if (other != null) remove(other);
+			if (h.size == size && h.modified == modified) {
+				h.cached = true;
+				this.handles.put(key, h);
+				trim();
+			}
+			return h;
+		}
+	}
+
+	private handle open(final String key, final File file) throws IOException {
+		final FileChannel channel = new FileInputStream(file).getChannel();
+		this.openCount.incrementAndGet();
+		final handle h = new handle(key, channel, channel.size(), file.lastModified());
+		h.users = 1;
+		return h;
+	}
+
+	/**
+	 * give a channel back
+	 * @param h a handle from acquire(), or null
+	 */
+	public void release(final handle h) {
+		if (h == null) return;
+		synchronized (this) {
+			h.users--;
+			h.released = System.currentTimeMillis();
+			if (h.users > 0) return;
+			if (h.cached) {
+				trim();
+				return;
+			}
+		}
+		close(h);
+	}
+
+	/**
+	 * forget a file, i.e. because it is overwritten, deleted or renamed
+	 */
+	public void invalidate(final File file) {
+		if (this.maxHandles == 0) return;
+		final String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (final IOException e) {
+			return;
+		}
+		synchronized (this) {
+			final handle h = this.handles.get(key);
+			if (h != null) remove(h);
+		}
+	}
+
+	/**
+	 * close the channels that had not been used for the idle time
+	 */
+	public void expire() {
+		final long timeout = System.currentTimeMillis() - this.idleTime;
+		synchronized (this) {
+			final Iterator<handle> i = this.handles.values().iterator();
+			handle h;
+			while (i.hasNext()) {
+				h = i.next();
+				if (h.users == 0 && h.released < timeout) {
+					i.remove();
+					h.cached = false;
+					close(h);
+				}
+			}
+		}
+	}
+
+	// close the least recently used channels that are not in use until the limit is met
+	private void trim() {
+		final Iterator<handle> i = this.handles.values().iterator();
+		handle h;
+		while (this.handles.size() > this.maxHandles && i.hasNext()) {
+			h = i.next();
+			if (h.users == 0) {
+				i.remove();
+				h.cached = false;
+				close(h);
+			}
+		}
+	}
+
+	// take a handle out of the cache; it is closed now or when it is given back
+	private void remove(final handle h) {
+		this.handles.remove(h.key);
+		h.cached = false;
+		if (h.users == 0) close(h);
+	}
+
+	private void close(final handle h) {
+		try {
+			h.channel.close();
+		} catch (final IOException e) {}
+		this.closedCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of open channels in the cache
+	 */
+	public synchronized int size() {
+		return this.handles.size();
+	}
+
+	public int maxHandles() {
+		return this.maxHandles;
+	}
+
+	public long hitCount() {
+		return this.hitCount.get();
+	}
+
+	public long openCount() {
+		return this.openCount.get();
+	}
+
+	public long closedCount() {
+		return this.closedCount.get();
+	}
+
+}
@@ -0,0 +1,198 @@
+/**
+ *  serverCommandTable
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverCommandTable:
+
+ The command methods of a serverHandler class are resolved once when the
+ serverCore is created. Every public method with a single String argument
+ and a name of up to eight upper-case letters or digits is a command.
+ A verb is packed into a long, one byte per character, and the table finds
+ the command with a perfect hash: the multiplier of the hash function is
+ chosen such that no two verbs of the handler share a slot. A lookup is
+ therefore one multiplication and one comparison and works directly on the
+ bytes of the command line, in any letter case.
+ A handler class may name the commands that can be executed while a data
+ transfer of its session runs in the background, i.e. ABOR or STAT, in a
+ public static String array 'concurrentCommands'.
+ */
+
+package de.anomic.ftpd;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Vector;
+
+public class serverCommandTable {
+
+	public static final int maxVerbLength = 8;
+
+	// thrown at the handler's error method if a client sends an unknown verb;
+	// it is created once because unknown verbs shall be cheap
+	public static final NoSuchMethodException unknownCommand = new NoSuchMethodException("command not implemented");
+
+	private final String[] verbs; // the command names
+	private final Method[] methods; // the command methods, same order as verbs
+	private final boolean[] concurrent; // commands that may run during a background transfer, same order as verbs
+	private long[] slotKeys; // packed verbs in hash order; 0 = empty slot
+	private int[] slotIndex; // index in verbs/methods for each slot
+	private long multiplier; // multiplier of the perfect hash
+	private int shift; // 64 - log2(number of slots)
+
+	/**
+	 * find all command methods of a handler class and build the lookup table
+	 * @param handlerClass a class that implements serverHandler
+	 */
+	public serverCommandTable(final Class handlerClass) {
+		final Method[] all = handlerClass.getMethods();
+		final Vector<Method> found = new Vector<Method>();
+		Class[] p;
+		for (int i = 0; i < all.length; i++) {
+			p = all[i].getParameterTypes();
+			if (p.length != 1 || p[0] != String.class) continue;
+			if (Modifier.isStatic(all[i].getModifiers())) continue;
+			if (key(all[i].getName()) == 0) continue;
+			found.addElement(all[i]);
+		}
+		this.methods = new Method[found.size()];
+		this.verbs = new String[found.size()];
+		for (int i = 0; i < this.methods.length; i++) {
+			this.methods[i] = found.elementAt(i);
+			this.verbs[i] = this.methods[i].getName();
+		}
+		this.concurrent = new boolean[this.verbs.length];
+		final String[] c = concurrentCommands(handlerClass);
+		for (int i = 0; i < c.length; i++) {
+			for (int j = 0; j < this.verbs.length; j++) {
+				if (this.verbs[j].equals(c[i])) this.concurrent[j] = true;
+			}
+		}
+		buildHash();
+	}
+
+	// the verbs of the handler's field 'concurrentCommands'; none if it has no such field
+	private static String[] concurrentCommands(final Class handlerClass) {
+		try {
+			final Field f = handlerClass.getField("concurrentCommands");
+			if (Modifier.isStatic(f.getModifiers()) && f.getType() == String[].class) return (String[]) f.get(null);
+		} catch (final Exception e) {
+		}
+		return new String[0];
+	}
+
+	// find a multiplier that maps all verbs to different slots
+	private void buildHash() {
+		final long[] keys = new long[this.verbs.length];
+		for (int i = 0; i < keys.length; i++) keys[i] = key(this.verbs[i]);
+		int bits = 1;
+		while ((1 << bits) < keys.length * 2) bits++;
+		long m = 0x9E3779B97F4A7C15L;
+		while (true) {
+			for (int attempt = 0; attempt < 1000; attempt++) {
+				final long[] sk = new long[1 << bits];
+				final int[] si = new int[1 << bits];
+				int i;
+				for (i = 0; i < keys.length; i++) {
+					final int slot = (int) ((keys[i] * m) >>> (64 - bits));
+					if (sk[slot] != 0) break;
+					sk[slot] = keys[i];
+					si[slot] = i;
+				}
+				if (i == keys.length) {
+					this.slotKeys = sk;
+					this.slotIndex = si;
+					this.multiplier = m;
+					this.shift = 64 - bits;
+					return;
+				}
+				m = (m + 0x632BE59BD9B4E019L) | 1L;
+			}
+			bits++; // too crowded, use more slots
+		}
+	}
+
+	/**
+	 * pack a verb into a long
+	 * @return the packed upper-case verb or 0 if the string is not a valid verb
+	 */
+	public static long key(final String verb) {
+		final int l = verb.length();
+		if (l == 0 || l > maxVerbLength) return 0;
+		long k = 0;
+		char c;
+		for (int i = 0; i < l; i++) {
+			c = verb.charAt(i);
+			if (!((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) return 0;
+			k = (k << 8) | c;
+		}
+		return k;
+	}
+
+	/**
+	 * pack a verb from the bytes of a command line into a long; lower-case letters are folded
+	 * @return the packed upper-case verb or 0 if the bytes are not a valid verb
+	 */
+	public static long key(final byte[] b, final int off, final int len) {
+		if (len == 0 || len > maxVerbLength) return 0;
+		long k = 0;
+		int c;
+		for (int i = off; i < off + len; i++) {
+			c = b[i];
+			if (c >= 'a' && c <= 'z') {
+				c -= 32;
+			} else if (!((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+				return 0;
+			}
+			k = (k << 8) | c;
+		}
+		return k;
+	}
+
+	/**
+	 * find a command
+	 * @return the number of the command or -1 if the verb is unknown
+	 */
+	public int find(final byte[] b, final int off, final int len) {
+		final long k = key(b, off, len);
+		if (k == 0) return -1;
+		final int slot = (int) ((k * this.multiplier) >>> this.shift);
+		return (this.slotKeys[slot] == k) ? this.slotIndex[slot] : -1;
+	}
+
+	public Method method(final int command) {
+		return this.methods[command];
+	}
+
+	/**
+	 * @return true if the command may be executed while a transfer of the session runs in the background
+	 */
+	public boolean concurrent(final int command) {
+		return this.concurrent[command];
+	}
+
+	public String verb(final int command) {
+		return this.verbs[command];
+	}
+
+	public int size() {
+		return this.verbs.length;
+	}
+
+}
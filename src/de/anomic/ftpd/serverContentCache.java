@@ -0,0 +1,206 @@
+/**
+ *  serverContentCache
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverContentCache:
+
+ Keeps the content of small, often requested files in direct buffers,
+ outside of the heap, so that a download of such a file is one write from
+ memory to the data connection. An entry belongs to the path of a file
+ and is only valid as long as the file has the size and the modification
+ time that it had when it was read; a changed file is read again.
+ The entries share a budget of bytes and are kept in least-recently-used
+ order; the oldest entries are dropped when a new one does not fit.
+ A file is only taken into the cache at its second request within a
+ while (the admission filter of TinyLFU, reduced to a 'door keeper' of
+ recently requested paths), so that files which are downloaded only once
+ do not push the hot files out of the cache.
+ Commands that change a file invalidate its entry; an invalidation also
+ discards files that are being read at that moment, since they may
+ already contain a part of the old content.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverContentCache {
+
+	private static final int doorKeeperSize = 8192; // number of paths that are remembered after their first request
+
+	private final long budget; // max. bytes of all entries
+	private final long maxFileSize; // larger files are not cached
+	private final LinkedHashMap<String, entry> entries; // path -> entry, in access order
+	private final LinkedHashMap<String, Boolean> doorKeeper; // paths that have been requested once
+	private long used; // bytes of all entries
+	private final AtomicLong generation; // counts the invalidations
+	private final AtomicLong hitCount; // requests that were served from the cache
+	private final AtomicLong missCount; // requests for cacheable files that were not in the cache
+	private final AtomicLong evictedCount; // entries that were dropped to make room
+
+	// the content of a file
+	private static class entry {
+		final long size;
+		final long modified;
+		final ByteBuffer content;
+		entry(final long size, final long modified, final ByteBuffer content) {
+			this.size = size;
+			this.modified = modified;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * @param budget max. bytes of all cached files; 0 = no cache
+	 * @param maxFileSize larger files are not cached
+	 */
+	public serverContentCache(final long budget, final long maxFileSize) {
+		this.budget = Math.max(0, budget);
+		this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+		this.entries = new LinkedHashMap<String, entry>(16, 0.75f, true);
+		this.doorKeeper = new LinkedHashMap<String, Boolean>() {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+				return size() > doorKeeperSize;
+			}
+		};
+		this.used = 0;
+		this.generation = new AtomicLong(0);
+		this.hitCount = new AtomicLong(0);
+		this.missCount = new AtomicLong(0);
+		this.evictedCount = new AtomicLong(0);
+	}
+
+	/**
+	 * get the content of a file
+	 * @param file an existing file
+	 * @return a read-only buffer with the whole content, positioned at 0, or null if
+	 *  the file is not cached; the caller shall read the file then itself
+	 */
+	public ByteBuffer get(final File file) throws IOException {
+		if (this.budget == 0) return null;
+		final long size = file.length();
+		if (size == 0 || size > this.maxFileSize || size > this.budget) return null;
+		final long modified = file.lastModified();
+		final String key = file.getAbsolutePath();
+		final long generation;
+		synchronized (this) {
+			final entry e = this.entries.get(key);
+			if (e != null) {
+				if (e.size == size && e.modified == modified) {
+					this.hitCount.incrementAndGet();
+					return e.content.asReadOnlyBuffer();
+				}
+				// the file has changed
+				this.entries.remove(key);
+				this.used -= e.size;
+			}
+			this.missCount.incrementAndGet();
+			if (e == null && this.doorKeeper.remove(key) == null) {
+				// first request: the file is only remembered
+				this.doorKeeper.put(key, Boolean.TRUE);
+				return null;
+			}
+			generation = this.generation.get();
+		}
+		// read the file outside of the lock
+		final ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			while (content.hasRemaining()) {
+				if (channel.read(content, content.position()) < 0) return null; // the file has been truncated
+			}
+		} finally {
+			in.close();
+		}
+		content.flip();
+		if (file.length() != size || file.lastModified() != modified) return null; // changed while it was read
+		synchronized (this) {
+			if (this.generation.get() == generation) {
+				final entry old = this.entries.put(key, new entry(size, modified, content));
+				if (old != null) this.used -= old.size;
+				this.used += size;
+				evict();
+			}
+		}
+		return content.asReadOnlyBuffer();
+	}
+
+	// drop the least recently used entries until the budget is met
+	private void evict() {
+		final Iterator<entry> i = this.entries.values().iterator();
+		entry e;
+		while (this.used > this.budget && i.hasNext()) {
+			e = i.next();
+			i.remove();
+			this.used -= e.size;
+			this.evictedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * forget a file, i.e. because it is overwritten, deleted or renamed
+	 */
+	public void invalidate(final File file) {
+		if (this.budget == 0) return;
+		this.generation.incrementAndGet();
+		final String key = file.getAbsolutePath();
+		synchronized (this) {
+			final entry e = this.entries.remove(key);
+			if (e != null) this.used -= e.size;
+		}
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return the bytes of all cached files
+	 */
+	public synchronized long used() {
+		return this.used;
+	}
+
+	public long budget() {
+		return this.budget;
+	}
+
+	public long hitCount() {
+		return this.hitCount.get();
+	}
+
+	public long missCount() {
+		return this.missCount.get();
+	}
+
+	public long evictedCount() {
+		return this.evictedCount.get();
+	}
+
+}
@@ -25,89 +25,371 @@ package de.anomic.ftpd;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Locale;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class serverCore implements Runnable {
 
 	// class variables
-	private ServerSocket socket; // listener
+	private ServerSocket[] acceptors; // the listener of each acceptor thread; acceptors may share a listener
+	private serverSelector selector; // multiplexer for control connections; null if each session has its own thread
+	private Executor sessionExecutor; // runs the sessions of the thread engine
+	private ExecutorService transferExecutor; // runs data transfers in the background; null = on the thread of the command
 	private int maxSessions = 0; // max. number of sessions; 0=unlimited
-	private int sessionCounter = 0; // counter that enumerates the running
-									// sessions
+	private serverAdmission admission; // counts the running sessions and queues new ones
+	private String rejectMessage; // sent to clients that cannot be served
+	private String drainMessage; // sent to sessions that are terminated by drain()
+	private volatile boolean draining; // no more connections are accepted, the sessions are terminated
+	private ScheduledExecutorService scheduler; // timer for house-keeping tasks
 	private static int loglevel = 2; // log level
 	private serverSwitch switchboard; // external values
 	private int timeout; // connection time-out of the socket
-	private Hashtable activeThreads; // contains the active threads
-	private Hashtable sleepingThreads; // contains the threads that are alive
-										// since the sleepthreashold
-	private boolean termSleepingThreads; // if true then threads over
-											// sleepthreashold are killed
-	private final int sleepthreshold = 30000; // after that time a thread is
-												// considered as beeing sleeping
-												// (1/2 minute)
-	private final int sleeplimit = 3600000; // after that time a thread is
-											// considered as beeing dead-locked
-											// (1 hour)
-	private Class commandClass; // the command class (a serverHandler)
-	private Class[] commandInitClasses; // the init's methods arguments
-    private Hashtable loginAttempts;
-    private Hashtable loginIsWaiting;
+	private ConcurrentHashMap<Long, Session> sessions; // registry of the running sessions, by session number
+	private AtomicLong sessionNumber; // source of the session numbers
+	private AtomicInteger busySessions; // number of sessions that execute a command or a background transfer
+	private AtomicInteger backgroundTransfers; // number of transfers that run in the background
+	private serverTimingWheel wheel; // idle and transfer time-outs of the sessions
+	private long idleTimeout; // a session without commands for that time is closed; 0 = never
+	private long stallTimeout; // a transfer without progress for that time is stalled; 0 = never
+	private AtomicLong idleClosedCount; // sessions closed because of the idle time-out
+	private AtomicLong stalledCount; // transfers that had stalled
+	private AtomicLong acceptedCount; // connections that had been accepted
+	private AtomicLong blockedCount; // connections that had been refused because of failed log-ins
+	private boolean termSleepingThreads; // if true then the threads of
+											// stalled transfers are interrupted
+	private serverHandlerFactory handlerFactory; // creates the command objects of the sessions
+	private serverCommandTable commands; // the command class' command methods
+	private serverStatistics statistics; // counters and command latencies
+	private serverBufferPool buffers; // transfer buffers, shared by the sessions
+	private serverChannelCache channels; // open files for downloads, shared by the sessions
+	private serverLoginTracker loginTracker; // failed log-ins and running penalty delays by client address
 	private int loginfailInitialDelay;
 	private int loginfailAddDelay;
 	private int loginfailMaxAttempts;
+	private int maxLineLength; // longest command line that is accepted
+	private long writeTimeout; // nio engine: a client that does not read its replies for that time is disconnected
 
 	// class initializer
 	public serverCore(final int port, final int maxSessions, final int timeout,
 			final boolean termSleepingThreads, final String commandClassName,
 			final serverSwitch switchboard, final int logl) throws IOException {
+		this(port, maxSessions, timeout, termSleepingThreads,
+				classFactory(commandClassName), switchboard, logl);
+	}
+
+	public serverCore(final int port, final int maxSessions, final int timeout,
+			final boolean termSleepingThreads, final serverHandlerFactory handlerFactory,
+			final serverSwitch switchboard, final int logl) throws IOException {
+		// the engine decides how control connections are served:
+		// 'thread' - one thread per session that blocks on the control socket
+		// 'nio'    - all control sockets are multiplexed over a small number of selectors
+		final boolean nio = switchboard.getConfig("engine", "thread").equals("nio");
 		try {
-			this.socket = new ServerSocket(port);
+			this.acceptors = bind(switchboard.getConfig("bind", ""), port,
+					Math.max(1, switchboard.getConfigInt("acceptors", 1)), nio);
 		} catch (final java.net.BindException e) {
 			System.out.println("FATAL ERROR: " + e.getMessage() + " - probably root access rights needed. check port number");
 			System.exit(0);
 		}
-        this.loginAttempts = new Hashtable();
-        this.loginIsWaiting = new Hashtable();
+        this.loginTracker = new serverLoginTracker(
+                switchboard.getConfigInt("loginfailWindow", 3600000),
+                switchboard.getConfigInt("loginfailTrackerSize", 100000));
         this.loginfailInitialDelay = switchboard.getConfigInt("loginfailInitialDelay", 1000);
         this.loginfailAddDelay = switchboard.getConfigInt("loginfailAddDelay", 2000);
         this.loginfailMaxAttempts = switchboard.getConfigInt("loginfailMaxAttempts", 100);
+        this.maxLineLength = switchboard.getConfigInt("maxlinelength", serverLineDecoder.defaultMaxLineLength);
+        this.writeTimeout = switchboard.getConfigInt("writetimeout", 60000);
+		this.handlerFactory = handlerFactory;
+		this.commands = new serverCommandTable(handlerFactory.handlerClass());
+		final String[] verbs = new String[this.commands.size()];
+		for (int i = 0; i < verbs.length; i++) verbs[i] = this.commands.verb(i);
+		this.statistics = new serverStatistics(verbs);
+		this.buffers = new serverBufferPool(
+				switchboard.getConfigInt("bufferpoolsize", 33554432),
+				switchboard.getConfig("bufferpooldirect", "true").equals("true"));
+		this.channels = new serverChannelCache(
+				switchboard.getConfigInt("channelcache", 256),
+				switchboard.getConfigInt("channelcacheidle", 10000));
+		this.maxSessions = maxSessions;
+		this.admission = new serverAdmission(maxSessions,
+				switchboard.getConfigInt("admissionqueue", 100),
+				switchboard.getConfigInt("admissionqueuetime", 30000));
+		this.rejectMessage = switchboard.getConfig("rejectmessage", "421 too many users, try again later");
+		this.drainMessage = switchboard.getConfig("drainmessage", "421 service shutting down, closing control connection");
+		this.draining = false;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "serverCore scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				// reject connections that have waited too long for a session
+				final Vector<Object> v = serverCore.this.admission.expired();
+				for (int i = 0; i < v.size(); i++) {
+					reject((Socket) v.elementAt(i), serverCore.this.rejectMessage);
+				}
+			}
+		}, 1000, 1000, TimeUnit.MILLISECONDS);
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				// forget clients whose failed log-ins have decayed
+				serverCore.this.loginTracker.expire();
+			}
+		}, 60000, 60000, TimeUnit.MILLISECONDS);
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				// close files that have not been downloaded for a while
+				serverCore.this.channels.expire();
+			}
+		}, 1000, 1000, TimeUnit.MILLISECONDS);
+		this.switchboard = switchboard;
+		this.timeout = timeout;
+		this.termSleepingThreads = termSleepingThreads;
+		loglevel = logl;
+		this.sessions = new ConcurrentHashMap<Long, Session>();
+		this.sessionNumber = new AtomicLong(0);
+		this.busySessions = new AtomicInteger(0);
+		this.backgroundTransfers = new AtomicInteger(0);
+		this.idleTimeout = switchboard.getConfigInt("idletimeout", 900000);
+		this.stallTimeout = switchboard.getConfigInt("stalltimeout", 120000);
+		this.idleClosedCount = new AtomicLong(0);
+		this.stalledCount = new AtomicLong(0);
+		this.acceptedCount = new AtomicLong(0);
+		this.blockedCount = new AtomicLong(0);
+		this.wheel = new serverTimingWheel(512, 1000);
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				serverCore.this.wheel.tick(System.currentTimeMillis());
+			}
+		}, this.wheel.tickMillis(), this.wheel.tickMillis(), TimeUnit.MILLISECONDS);
+		this.sessionExecutor = sessionExecutor(switchboard.getConfig("sessionthreads", "platform"));
+		if (switchboard.getConfig("backgroundtransfers", "true").equals("true")) {
+			// transfers must not wait for each other: the pool grows with the number of running transfers
+			this.transferExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "serverCore transfer " + (++this.count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (nio) {
+			this.selector = new serverSelector(
+					switchboard.getConfigInt("selectors", Runtime.getRuntime().availableProcessors()),
+					switchboard.getConfigInt("workers", 0));
+		}
+	}
+
+	/**
+	 * a factory that creates the handlers through reflection; it is used if the
+	 * serverCore is given only the name of the handler class
+	 */
+	private static serverHandlerFactory classFactory(final String commandClassName) {
+		final Class<?> c;
 		try {
-			this.commandClass = Class.forName(commandClassName);
-			this.commandInitClasses = new Class[] {
-					Class.forName("de.anomic.ftpd.serverCore$Session"),
-					Class.forName("de.anomic.ftpd.serverSwitch") };
-			this.maxSessions = maxSessions;
-			this.sessionCounter = 0;
-			this.socket.setSoTimeout(0); // unlimited
-			this.switchboard = switchboard;
-			this.timeout = timeout;
-			this.termSleepingThreads = termSleepingThreads;
-			loglevel = logl;
-			this.activeThreads = new Hashtable();
-			this.sleepingThreads = new Hashtable();
+			c = Class.forName(commandClassName);
 		} catch (final java.lang.ClassNotFoundException e) {
 			System.out.println("FATAL ERROR: " + e.getMessage()
 					+ " - Class Not Found");
 			System.exit(0);
+			return null;
 		}
+		return new serverHandlerFactory() {
+			public Class handlerClass() {
+				return c;
+			}
+			public serverHandler newHandler(final Session session, final serverSwitch switchboard) throws IOException {
+				final serverHandler handler;
+				try {
+					handler = (serverHandler) c.getConstructor().newInstance();
+				} catch (final Exception e) {
+					throw new IOException("cannot create handler " + c.getName() + ": " + e);
+				}
+				handler.init(session, switchboard);
+				return handler;
+			}
+			public void recycle(final serverHandler handler) {
+			}
+		};
 	}
 
-	// helper methods for system date
-	public static final SimpleDateFormat logFormatter = new SimpleDateFormat(
-			"yyyyMMdd HH:mm:ss", Locale.ENGLISH);
+	/**
+	 * open the listeners
+	 * @param bind comma-separated list of port or address:port; empty for all addresses at the default port
+	 * @param port the default port
+	 * @param acceptorCount number of acceptor threads per address
+	 * @param nio if true, the listeners accept channels for the selectors; otherwise they accept
+	 *        plain sockets: on java runtimes before 13 a write to the socket of a channel blocks
+	 *        while another thread reads from it, and the thread engine writes replies from the
+	 *        scheduler and from transfer threads while the session thread waits for a command
+	 * @return the listener of each acceptor
+	 */
+	private ServerSocket[] bind(final String bind, final int port, final int acceptorCount, final boolean nio) throws IOException {
+		final Vector<InetSocketAddress> addresses = new Vector<InetSocketAddress>();
+		final String[] entries = bind.split(",");
+		String entry;
+		int p;
+		for (int i = 0; i < entries.length; i++) {
+			entry = entries[i].trim();
+			if (entry.length() == 0) continue;
+			p = entry.lastIndexOf(':');
+			if (p < 0) {
+				addresses.addElement(new InetSocketAddress(Integer.parseInt(entry)));
+			} else {
+				String host = entry.substring(0, p);
+				if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+				addresses.addElement(new InetSocketAddress(host, Integer.parseInt(entry.substring(p + 1))));
+			}
+		}
+		if (addresses.size() == 0) addresses.addElement(new InetSocketAddress(port));
+
+		// a listener that is handed over by the parent process (i.e. inetd in 'wait'
+		// mode or systemd with StandardInput=socket) replaces all configured addresses
+		final Channel inherited = System.inheritedChannel();
+		if (inherited instanceof ServerSocketChannel) {
+			final ServerSocketChannel c = (ServerSocketChannel) inherited;
+			c.configureBlocking(true);
+			final ServerSocket[] result = new ServerSocket[acceptorCount];
+			for (int i = 0; i < acceptorCount; i++) result[i] = c.socket();
+			printlog(0, "*", "listening at inherited " + c.socket().getLocalSocketAddress() + " with " + acceptorCount + " acceptor(s)");
+			return result;
+		}
 
-	public static String logDate() {
-		return logFormatter.format(new Date());
+		// with SO_REUSEPORT every acceptor gets its own listener and the kernel
+		// distributes the connections; otherwise the acceptors share one listener
+		final SocketOption<?> reusePort = (acceptorCount > 1) ? reusePort(nio) : null;
+		final ServerSocket[] result = new ServerSocket[addresses.size() * acceptorCount];
+		ServerSocket c = null;
+		for (int i = 0; i < addresses.size(); i++) {
+			for (int j = 0; j < acceptorCount; j++) {
+				if (j == 0 || reusePort != null) {
+					c = (nio) ? ServerSocketChannel.open().socket() : new ServerSocket();
+					c.setReuseAddress(true);
+					if (reusePort != null) setOption(c, reusePort);
+					c.bind(addresses.elementAt(i));
+				}
+				result[i * acceptorCount + j] = c;
+			}
+			printlog(0, "*", "listening at " + addresses.elementAt(i) + " with " + acceptorCount + " acceptor(s)"
+					+ ((reusePort == null) ? "" : ", SO_REUSEPORT"));
+		}
+		return result;
+	}
+
+	/**
+	 * look up the SO_REUSEPORT socket option; it is not available on every runtime and platform
+	 * @param nio if true, the option is set on channels, otherwise on plain listeners
+	 * @return the option or null if it is not supported
+	 */
+	private SocketOption<?> reusePort(final boolean nio) {
+		try {
+			final SocketOption<?> option = (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			if (nio) {
+				final ServerSocketChannel probe = ServerSocketChannel.open();
+				try {
+					if (probe.supportedOptions().contains(option)) return option;
+				} finally {
+					probe.close();
+				}
+			} else {
+				// plain listeners have socket options since java 9
+				final ServerSocket probe = new ServerSocket();
+				try {
+					if (((Collection<?>) ServerSocket.class.getMethod("supportedOptions").invoke(probe)).contains(option)) return option;
+				} finally {
+					probe.close();
+				}
+			}
+		} catch (final Exception e) {
+		}
+		printlog(0, "*", "IRREGULARITY: SO_REUSEPORT not supported, acceptors share one listener");
+		return null;
+	}
+
+	// set a boolean option that has been found by reusePort
+	private static <T> void setOption(final ServerSocket socket, final SocketOption<T> option) throws IOException {
+		if (socket.getChannel() != null) {
+			socket.getChannel().setOption(option, option.type().cast(Boolean.TRUE));
+			return;
+		}
+		try {
+			ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(socket, option, Boolean.TRUE);
+		} catch (final InvocationTargetException e) {
+			throw new IOException(e.getCause().getMessage());
+		} catch (final Exception e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * create the executor that runs the sessions of the thread engine
+	 * @param type 'platform' for a new thread per session or 'virtual' for a
+	 *        new virtual thread per session (needs a java runtime that supports them)
+	 * @return an executor that starts a new thread for every session
+	 */
+	private Executor sessionExecutor(final String type) {
+		ThreadFactory factory = null;
+		if (type.equals("virtual")) {
+			// virtual threads are not available on every runtime,
+			// therefore we look them up through reflection. The builder's class is
+			// internal, so factory() is resolved on the public Thread.Builder interface
+			try {
+				final Object builder = Thread.class.getMethod("ofVirtual", (Class[]) null).invoke(null, (Object[]) null);
+				final Method m = Class.forName("java.lang.Thread$Builder").getMethod("factory", (Class[]) null);
+				factory = (ThreadFactory) m.invoke(builder, (Object[]) null);
+				printlog(0, "*", "sessions run in virtual threads");
+			} catch (final Exception e) {
+				final Throwable cause = (e instanceof InvocationTargetException) ? e.getCause() : e;
+				printlog(0, "*", "IRREGULARITY: virtual threads not supported by this java runtime ("
+						+ cause.getClass().getName() + ": " + cause.getMessage() + "), using platform threads");
+			}
+		} else if (!type.equals("platform")) {
+			printlog(0, "*", "IRREGULARITY: unknown sessionthreads type '" + type + "', using platform threads");
+		}
+		final ThreadFactory threadFactory = factory;
+		return new Executor() {
+			public void execute(final Runnable r) {
+				final Thread t = (threadFactory == null) ? new Thread(r) : threadFactory.newThread(r);
+				t.start();
+			}
+		};
+	}
+
+	/**
+	 * replace the executor that runs the sessions of the thread engine.
+	 * Every session blocks its executing thread for the lifetime of the session,
+	 * therefore the executor must not limit the number of concurrent tasks
+	 * below the number of sessions that shall be served.
+	 * @param executor
+	 */
+	public void setSessionExecutor(final Executor executor) {
+		this.sessionExecutor = executor;
 	}
 
 	private void printlog(final int level, final String a, final String message) {
@@ -115,126 +397,284 @@ public class serverCore implements Runnable {
 		// 1 - print also download/upload information
 		// 2 - print every command received/sent on telnet channel
 		if (level <= loglevel) {
-			System.out.println(logDate() + " " + a + " " + message);
+			serverLog.log(a, message);
 		}
 	}
+
+	/**
+	 * @return true if messages of that level are logged; check this before a message is built
+	 */
+	public static boolean logs(final int level) {
+		return level <= loglevel;
+	}
 	
 	public int penaltyWait(InetAddress address) {
-        synchronized (this.loginIsWaiting) {
-            if (this.loginIsWaiting.containsKey(address)) return -1;
-        }
-        synchronized (this.loginAttempts) {
-            Object c = this.loginAttempts.get(address);
-            if (c == null) return 0;
-            int cc = ((Integer) c).intValue();
-            if (cc >= loginfailMaxAttempts) return -1;
-            return loginfailInitialDelay + cc * loginfailAddDelay;
-        }
+        if (this.loginTracker.isWaiting(address)) return -1;
+        final int cc = this.loginTracker.failures(address);
+        if (cc == 0) return 0;
+        if (cc >= loginfailMaxAttempts) return -1;
+        return loginfailInitialDelay + cc * loginfailAddDelay;
+	}
+
+	/**
+	 * @return the tracker of failed log-ins
+	 */
+	public serverLoginTracker loginTracker() {
+		return this.loginTracker;
 	}
 
 	// class body
 	public void run() {
 		printlog(0, "*", "server started");
+		// all acceptors but the first have their own thread
+		for (int i = 1; i < this.acceptors.length; i++) {
+			final ServerSocket listener = this.acceptors[i];
+			final Thread t = new Thread(new Runnable() {
+				public void run() {
+					accept(listener);
+				}
+			}, "serverCore acceptor " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		accept(this.acceptors[0]);
+		printlog(0, "*", "terminated");
+	}
+
+	// accept connections; the checks and the creation of the session are done by
+	// the thread that will run the session (thread engine) or by a worker (nio engine)
+	private void accept(final ServerSocket listener) {
 		try {
-			Thread t;
-			listener: do {
+			do {
 				// prepare for new connection
-				printlog(1, "*", "waiting for connections, "
-						+ this.sessionCounter + " sessions running, "
-						+ this.sleepingThreads.size() + " sleeping");
-				final Socket controlSocket = this.socket.accept();
-				controlSocket.setSoTimeout(this.timeout);
-				// brute-force check
-				long penaltyWait = penaltyWait(controlSocket.getInetAddress());
-				if (penaltyWait < 0) {
-				    try {controlSocket.close();} catch (final IOException e) {}
-				    printlog(0, controlSocket.getInetAddress() + "/", "rejected blocked client from connecting");
-                    continue listener;
-				}
-				
-				// start session
-				Session connection;
-				synchronized (this) {
-					try {
-						connection = new Session(controlSocket, this.switchboard, penaltyWait);
-					} catch (final IOException e) {
-						printlog(0, controlSocket.getInetAddress() + "/", "ERROR: " + e.getMessage());
-						continue;
-					}
+				if (loglevel >= 1) printlog(1, "*", "waiting for connections, "
+						+ this.admission.sessions() + " sessions running, "
+						+ this.admission.queueDepth() + " queued, "
+						+ this.busySessions.get() + " busy");
+				final Socket controlSocket = listener.accept();
+				if (this.draining) {
+					reject(controlSocket, this.drainMessage);
+					break;
 				}
-				// start the thread
-				t = new Thread(connection);
-				t.start();
-				this.activeThreads.put(t, new Long(System.currentTimeMillis()));
-				// idle until number of maximal threads is (again) reached
-				synchronized (this) {
-					while ((this.maxSessions > 0)
-							&& (this.sessionCounter >= this.maxSessions)) {
-						try {
-							wait(1000);
-						} catch (final InterruptedException e) {
-						}
+				final Runnable setup = new Runnable() {
+					public void run() {
+						admit(controlSocket);
 					}
+				};
+				if (this.selector == null) {
+					this.sessionExecutor.execute(setup);
+				} else {
+					this.selector.execute(setup);
 				}
 			} while (true);
 		} catch (final IOException e) {
-			System.err.println("ERROR: " + e.getMessage());
+			// drain() closes the listeners
+			if (!this.draining) System.err.println("ERROR: " + e.getMessage());
 		}
-		printlog(0, "*", "terminated");
 	}
 
-	// idle sensor: the thread is idle if there are no sessions running
-	public boolean idle() {
-		// simple check
-		if (this.sessionCounter == 0)
-			return true;
+	// check a new connection and start its session, or let it wait until another session has terminated
+	private void admit(final Socket controlSocket) {
+		this.acceptedCount.incrementAndGet();
+		if (this.draining) {
+			reject(controlSocket, this.drainMessage);
+			return;
+		}
+		try {
+			controlSocket.setSoTimeout(this.timeout);
+		} catch (final IOException e) {
+			try {controlSocket.close();} catch (final IOException ee) {}
+			return;
+		}
+		// brute-force check
+		final long penaltyWait = penaltyWait(controlSocket.getInetAddress());
+		if (penaltyWait < 0) {
+			this.blockedCount.incrementAndGet();
+			try {controlSocket.close();} catch (final IOException e) {}
+			printlog(0, controlSocket.getInetAddress() + "/", "rejected blocked client from connecting");
+			return;
+		}
 
-		// complex check
-		Enumeration threadEnum;
-		Thread t;
-		// look for sleeping threads
-		threadEnum = this.activeThreads.keys();
-		while (threadEnum.hasMoreElements()) {
-			t = (Thread) (threadEnum.nextElement());
-			if (t.isAlive()) {
-				// check the age of the thread
-				if (System.currentTimeMillis()
-						- ((Long) this.activeThreads.get(t)).longValue() > this.sleepthreshold) {
-					// move thread from the active threads to the sleeping
-					this.sleepingThreads.put(t, this.activeThreads.remove(t));
-				}
+		switch (this.admission.admit(controlSocket)) {
+		case serverAdmission.admitted:
+			if (!startSession(controlSocket, penaltyWait, true)) sessionTerminated();
+			break;
+		case serverAdmission.queued:
+			printlog(1, controlSocket.getInetAddress() + "/", "too many sessions, connection queued");
+			break;
+		default:
+			reject(controlSocket, this.rejectMessage);
+		}
+	}
+
+	/**
+	 * start a session for a connection that has been admitted
+	 * @param inline if true, the thread engine runs the session in the calling thread
+	 * @return false if the session could not be started
+	 */
+	private boolean startSession(final Socket controlSocket, final long penaltyWait, final boolean inline) {
+		final Session connection;
+		try {
+			connection = new Session(controlSocket, this.switchboard, penaltyWait);
+		} catch (final IOException e) {
+			printlog(0, controlSocket.getInetAddress() + "/", "ERROR: " + e.getMessage());
+			try {controlSocket.close();} catch (final IOException ee) {}
+			return false;
+		}
+		this.sessions.put(Long.valueOf(connection.number), connection);
+		if (this.selector == null) {
+			// start the thread
+			if (inline) {
+				connection.run();
 			} else {
-				// the thread is dead, remove it
-				this.activeThreads.remove(t);
+				this.sessionExecutor.execute(connection);
 			}
+		} else {
+			// the selector serves the session from now on
+			this.selector.register(connection);
 		}
+		return true;
+	}
 
-		// look for dead threads
-		threadEnum = this.sleepingThreads.keys();
-		while (threadEnum.hasMoreElements()) {
-			t = (Thread) (threadEnum.nextElement());
-			if (t.isAlive()) {
-				// check the age of the thread
-				if (System.currentTimeMillis() - ((Long) this.sleepingThreads.get(t)).longValue() > this.sleeplimit) {
-					// kill the thread
-					if (this.termSleepingThreads) {
-						t.interrupt(); // hopefully this wakes it up.
-					}
-					this.sleepingThreads.remove(t);
-				}
-			} else {
-				// the thread is dead, remove it
-				this.sleepingThreads.remove(t);
+	/**
+	 * a session has terminated: start the next waiting connection
+	 */
+	private void sessionTerminated() {
+		Socket next;
+		while ((next = (Socket) this.admission.release()) != null) {
+			if (this.draining) {
+				reject(next, this.drainMessage);
+				continue;
 			}
+			if (startSession(next, Math.max(0, penaltyWait(next.getInetAddress())), false)) return;
 		}
+	}
 
-		if (this.sessionCounter == 0 && this.activeThreads.size() > 0) {
-			System.out.println("ERROR at idle-test: active Thread estimation wrong ("
-							+ this.activeThreads.size() + ")");
+	/**
+	 * answer a connection that cannot be served and close it
+	 */
+	private void reject(final Socket controlSocket, final String message) {
+		printlog(1, controlSocket.getInetAddress() + "/", "connection rejected: " + message);
+		try {
+			send(controlSocket.getOutputStream(), message);
+		} catch (final IOException e) {
+		}
+		try {controlSocket.close();} catch (final IOException e) {}
+	}
+
+	/**
+	 * stop the server gracefully: no more connections are accepted, waiting
+	 * connections and idle sessions get the drain message, and sessions that
+	 * execute a command (i.e. a transfer) are terminated when the command is
+	 * complete. Sessions that are still running after the timeout are closed.
+	 * The listeners are closed; an inherited listener stays open in the
+	 * process that inherited it as well, so a successor can go on accepting.
+	 * @param timeout max. time in milliseconds to wait for running commands
+	 */
+	public void drain(final long timeout) {
+		synchronized (this) {
+			if (this.draining) return;
+			this.draining = true;
+		}
+		printlog(0, "*", "draining: " + this.sessions.size() + " sessions running, "
+				+ this.busySessions.get() + " busy");
+		for (int i = 0; i < this.acceptors.length; i++) {
+			try {this.acceptors[i].close();} catch (final IOException e) {}
+		}
+		final Vector<Object> v = this.admission.drain();
+		for (int i = 0; i < v.size(); i++) {
+			reject((Socket) v.elementAt(i), this.drainMessage);
+		}
+		Iterator<Session> i = this.sessions.values().iterator();
+		Session s;
+		while (i.hasNext()) {
+			s = i.next();
+			if (s.idle()) s.terminate(this.drainMessage);
+		}
+		final long end = System.currentTimeMillis() + timeout;
+		while (!this.sessions.isEmpty() && System.currentTimeMillis() < end) {
+			try {Thread.sleep(100);} catch (final InterruptedException e) {break;}
 		}
+		int aborted = 0;
+		i = this.sessions.values().iterator();
+		while (i.hasNext()) {
+			i.next().close();
+			aborted++;
+		}
+		printlog(0, "*", "drained, " + aborted + " sessions aborted");
+		serverLog.flush(1000);
+	}
+
+	/**
+	 * @return true if drain() has been called
+	 */
+	public boolean draining() {
+		return this.draining;
+	}
+
+	/**
+	 * @return the admission controller; it knows the number of running and queued sessions
+	 */
+	public serverAdmission admission() {
+		return this.admission;
+	}
+
+	public serverStatistics statistics() {
+		return this.statistics;
+	}
 
-		// finally return a heuristic
-		return (this.activeThreads.size() == 0);
+	public serverBufferPool buffers() {
+		return this.buffers;
+	}
+
+	public serverChannelCache channels() {
+		return this.channels;
+	}
+
+	// idle sensor: the server is idle if no session executes a command
+	public boolean idle() {
+		return this.busySessions.get() == 0;
+	}
+
+	/**
+	 * @return the running sessions
+	 */
+	public Collection<Session> sessions() {
+		return this.sessions.values();
+	}
+
+	public long idleClosedCount() {
+		return this.idleClosedCount.get();
+	}
+
+	public long stalledCount() {
+		return this.stalledCount.get();
+	}
+
+	public int busySessions() {
+		return this.busySessions.get();
+	}
+
+	/**
+	 * @return the number of transfers that run in the background right now
+	 */
+	public int backgroundTransfers() {
+		return this.backgroundTransfers.get();
+	}
+
+	public long acceptedCount() {
+		return this.acceptedCount.get();
+	}
+
+	public long blockedCount() {
+		return this.blockedCount.get();
+	}
+
+	/**
+	 * @return the number of client addresses that are refused because of failed log-ins
+	 */
+	public int blockedAddresses() {
+		return this.loginTracker.blocked(this.loginfailMaxAttempts);
 	}
 
 	public class Session implements Runnable {
@@ -242,16 +682,41 @@ public class serverCore implements Runnable {
 		private String request; // current command line
 		private int commandCounter; // for logging: number of commands in this
 									// session
-		private Object cmdObject; // the initialized instance of the
+		private serverHandler cmdObject; // the initialized instance of the
 									// commandClass; executes the session's
 									// commands
 		private String identity; // a string that identifies the client (i.e.
 									// ftp: account name)
 		public Socket controlSocket; // dialog socket
+		public SocketChannel controlChannel; // channel of the dialog socket; only set by the nio engine
 		public InetAddress userAddress; // the address of the client
-		public PushbackInputStream in; // on control input stream
+		public serverLineDecoder in; // splits the control input stream into lines
 		public OutputStream out; // on control output stream, autoflush
+		private final Object outLock; // guards the reply buffer
+		private byte[] outBuffer; // encoded replies that are not yet sent
+		private int outLength; // number of bytes in outBuffer
+		private boolean holdFlush; // writeLine does not flush, i.e. while the greeting is written
 		private long penaltyWait;
+		private boolean started; // begin() has been called
+		private long delay; // penalty delay for the reply of the current command
+		private boolean suspended; // the session waits for a delayed reply and has no thread
+		private String delayedReply; // the reply that is sent when the delay is over
+		private boolean delayedTerminate; // the session terminates after the delayed reply
+		private Runnable resumption; // continues a suspended session; null = run it again on the session executor
+		private final Object[] parameter; // argument of the command methods, re-used for every command
+		private boolean closed; // the session has terminated
+		public final long number; // the session's key in the registry
+		private final timeout timer; // the session's idle and transfer time-out
+		private volatile long lastCommand; // time when the last command had been executed
+		private volatile Thread worker; // the thread that executes a command; null if the session waits
+		private volatile long transferred; // bytes transferred by the current command
+		private long lastTransferred; // value of transferred at the last check of the timer
+		private boolean stalled; // the current transfer had been reported as stalled
+		private final Object transferLock; // guards transferring, executing and closing
+		private volatile boolean transferring; // a transfer runs in the background
+		private boolean executing; // a command runs on the handler
+		private volatile Thread transferWorker; // the thread of the background transfer
+		private boolean closing; // close() has been called; the handler is given back when the command and the background transfer are done
 
 		public Session(final Socket controlSocket, final serverSwitch switchboard, long penaltyWait) throws IOException {
 			this.identity = "-";
@@ -259,30 +724,45 @@ public class serverCore implements Runnable {
 			// String ipname = userAddress.getHostAddress();
 			// check if we want to allow this socket to connect us
 			this.controlSocket = controlSocket;
-			this.in = new PushbackInputStream(controlSocket.getInputStream());
-			this.out = controlSocket.getOutputStream();
+			if (serverCore.this.selector == null) {
+				this.controlChannel = null;
+				this.in = new serverLineDecoder(controlSocket.getInputStream(), serverCore.this.maxLineLength);
+				this.out = controlSocket.getOutputStream();
+			} else {
+				// the selector reads the control channel; we only write to it
+				this.controlChannel = controlSocket.getChannel();
+				this.controlChannel.configureBlocking(false);
+				this.in = new serverLineDecoder(null, serverCore.this.maxLineLength);
+				this.out = new serverSelector.channelOutputStream(this.controlChannel, serverCore.this.writeTimeout);
+			}
+			this.outLock = new Object();
+			this.outBuffer = new byte[256];
+			this.outLength = 0;
+			this.holdFlush = false;
 			this.commandCounter = 0;
 			this.penaltyWait = penaltyWait;
+			this.started = false;
+			this.delay = 0;
+			this.suspended = false;
+			this.resumption = null;
+			this.parameter = new Object[1];
+			this.closed = false;
+			this.number = serverCore.this.sessionNumber.incrementAndGet();
+			this.timer = new timeout();
+			this.lastCommand = System.currentTimeMillis();
+			this.worker = null;
+			this.transferred = 0;
+			this.transferLock = new Object();
+			this.transferring = false;
+			this.executing = false;
+			this.transferWorker = null;
+			this.closing = false;
 			// initiate the command class
 			// we pass the input and output stream to the commands,
 			// so that they can take over communication, if needed
-			try {
-				final Object[] initObjects = { this, switchboard };
-				this.cmdObject = serverCore.this.commandClass.getConstructor(new Class[0]).newInstance((Object[]) null);
-				serverCore.this.commandClass.getMethod("init", serverCore.this.commandInitClasses).invoke(this.cmdObject, initObjects);
-			} catch (final java.lang.NoSuchMethodException e) {
-				System.out.println("FATAL ERROR: No Such Method - " + e.getMessage());
-				System.exit(0);
-			} catch (final java.lang.InstantiationException e) {
-				System.out.println("FATAL ERROR: Wrong Instantiation - " + e.getMessage());
-				System.exit(0);
-			} catch (final java.lang.IllegalAccessException e) {
-				System.out.println("FATAL ERROR: Illegal Access - " + e.getMessage());
-				System.exit(0);
-			} catch (final java.lang.reflect.InvocationTargetException e) {
-				System.out.println("FATAL ERROR: Wrong Invocation - " + e.getMessage());
-				System.exit(0);
-			}
+			this.cmdObject = serverCore.this.handlerFactory.newHandler(this, switchboard);
+			// count the session only when it exists; a refused client is never closed as a session
+			serverCore.this.statistics.sessionStarted();
 		}
 
 		public void setIdentity(final String id) {
@@ -290,190 +770,587 @@ public class serverCore implements Runnable {
 		}
 
 		public void log(final int level, final boolean outgoing, final String request) {
+			if (level > loglevel) return;
 			printlog(level, this.userAddress.getHostAddress() + "/"
-					+ this.identity, "[" + serverCore.this.sessionCounter
+					+ this.identity, "[" + serverCore.this.admission.sessions()
 					+ ", " + this.commandCounter
 					+ ((outgoing) ? "] > " : "] < ") + request);
 		}
 
+		/**
+		 * send a reply line at once, together with all replies that are not yet sent
+		 */
 		public void writeLine(final String messg) throws IOException {
-			send(this.out, messg);
-			log(2, true, messg);
+			synchronized (this.outLock) {
+				reply(messg);
+				if (!this.holdFlush) flush();
+			}
+		}
+
+		/**
+		 * add a reply line to the reply buffer; it is sent with the next flush
+		 */
+		public void reply(final String messg) {
+			synchronized (this.outLock) {
+				final int l = messg.length();
+				int p = this.outLength;
+				if (p + l + 2 > this.outBuffer.length) p = grow(l + 2);
+				final byte[] b = this.outBuffer;
+				char c;
+				int i;
+				for (i = 0; i < l; i++) {
+					c = messg.charAt(i);
+					if (c >= 0x80) break;
+					b[p++] = (byte) c;
+				}
+				if (i < l) {
+					// not plain ASCII: encode the line with the default charset
+					final byte[] e = messg.getBytes();
+					p = this.outLength;
+					if (p + e.length + 2 > this.outBuffer.length) p = grow(e.length + 2);
+					System.arraycopy(e, 0, this.outBuffer, p, e.length);
+					p += e.length;
+				}
+				this.outBuffer[p++] = cr;
+				this.outBuffer[p++] = lf;
+				this.outLength = p;
+			}
+			if (loglevel >= 2) log(2, true, messg);
+		}
+
+		// make room for n more bytes in the reply buffer
+		private int grow(final int n) {
+			final byte[] b = new byte[Math.max(this.outBuffer.length * 2, this.outLength + n)];
+			System.arraycopy(this.outBuffer, 0, b, 0, this.outLength);
+			this.outBuffer = b;
+			return this.outLength;
+		}
+
+		/**
+		 * send all buffered replies with a single write
+		 */
+		public void flush() throws IOException {
+			synchronized (this.outLock) {
+				if (this.outLength == 0) return;
+				final int l = this.outLength;
+				this.outLength = 0;
+				this.out.write(this.outBuffer, 0, l);
+				this.out.flush();
+			}
 		}
 
 		public byte[] readLine() {
-			return receive(this.in);
+			try {
+				final int l = this.in.readLine();
+				if (l < 0) return null;
+				final byte[] b = new byte[l];
+				System.arraycopy(this.in.buffer(), this.in.lineStart(), b, 0, l);
+				return b;
+			} catch (final IOException e) {
+				return null;
+			}
 		}
 
 		public final void run() {
-			serverCore.this.sessionCounter++;
 			try {
-			    if (this.penaltyWait > 0) {
-			        penaltySleep(this.penaltyWait);
-			    }
-				listen();
+				if ((this.started || begin()) && !this.suspended) listen();
 			} finally {
-				try {
-					this.controlSocket.close();
-				} catch (final IOException e) {
-					System.err.println("ERROR: (internal) " + e);
+				if (this.suspended) {
+					park();
+				} else {
+					close();
 				}
-				synchronized (this) {
-					this.notify();
+			}
+		}
+
+		/**
+		 * start the session: send the greeting, delayed by a login penalty.
+		 * If the greeting is delayed the session is suspended afterwards.
+		 * @return false if the session shall be terminated right away
+		 */
+		public boolean begin() {
+			this.started = true;
+			if (this.penaltyWait > 0) {
+				if (!penaltyDelay(this.penaltyWait)) return false;
+				// the greeting is sent when the delay is over
+				defer(null, false);
+				return true;
+			}
+			try {
+				greeting();
+				arm();
+				return true;
+			} catch (final java.io.IOException e) {
+				// connection interruption: more or less normal
+			}
+			return false;
+		}
+
+		// send the greeting; the handler may write it itself
+		private void greeting() throws IOException {
+			this.holdFlush = true;
+			try {
+				final String result = this.cmdObject.greeting();
+				if (result != null && result.length() > 0) {
+					reply(result);
 				}
+			} finally {
+				this.holdFlush = false;
+			}
+			flush();
+		}
+
+		/**
+		 * terminate the session and free the control connection
+		 */
+		public void close() {
+			synchronized (this) {
+				if (this.closed) return;
+				this.closed = true;
+			}
+			serverCore.this.wheel.cancel(this.timer);
+			serverCore.this.sessions.remove(Long.valueOf(this.number));
+			serverCore.this.statistics.sessionClosed();
+			try {
+				// the output stream of the nio engine holds a selector of its own
+				this.out.close();
+				this.controlSocket.close();
+			} catch (final IOException e) {
+				System.err.println("ERROR: (internal) " + e);
+			}
+			synchronized (this) {
+				this.notify();
+			}
+			synchronized (this.transferLock) {
+				this.closing = true;
+				// the command or the transfer gives the handler back when it is done
+				if (this.executing || this.transferring) return;
 			}
-			serverCore.this.sessionCounter--;
+			recycle();
+		}
+
+		// the handler is not used any more: give it back and start the next waiting connection
+		private void recycle() {
+			serverCore.this.handlerFactory.recycle(this.cmdObject);
+			sessionTerminated();
 		}
 
 		private void listen() {
 			try {
-				// set up some reflection
-				final Class[] stringType = { "".getClass() };
-				final Class[] exceptionType = { Class.forName("java.lang.Throwable") };
-				final Method greeting = serverCore.this.commandClass.getMethod("greeting", (Class[]) null);
-				final Method error = serverCore.this.commandClass.getMethod("error", exceptionType);
-
-				// send greeting
-				Object result = greeting.invoke(this.cmdObject, new Object[0]);
-				if (result != null) {
-					if ((result instanceof String)
-							&& (((String) result).length() > 0)) {
-						writeLine((String) result);
+				// start dialog
+				int l;
+				while ((l = this.in.readLine()) >= 0) {
+					if (!execute(this.in.buffer(), this.in.lineStart(), l)) break;
+					if (this.suspended) break;
+				}
+			} catch (final java.io.IOException e) {
+				// connection interruption: more or less normal
+			}
+		}
+
+		/**
+		 * execute a single command line. The reply is buffered as long as further
+		 * command lines of the client are already waiting in the line decoder;
+		 * the replies of pipelined commands are therefore sent with one write.
+		 * @param b a buffer that contains the command line
+		 * @param off the start of the command line in b
+		 * @param len the length of the command line without line end
+		 * @return false if the session shall be terminated
+		 * @throws IOException if the control connection is broken
+		 */
+		public boolean execute(final byte[] b, final int off, final int len) throws IOException {
+			final boolean goon = process(b, off, len);
+			if (!goon || this.suspended || !this.in.hasLine()) flush();
+			return goon;
+		}
+
+		private boolean process(final byte[] b, final int off, final int len) throws IOException {
+			this.commandCounter++;
+			if (loglevel >= 2) {
+				this.request = new String(b, off, len);
+				log(2, false, this.request);
+			}
+			// the verb is everything up to the first blank; telnet commands in front
+			// of it, i.e. the IAC IP IAC DM that clients send before ABOR, are skipped
+			final int end = off + len;
+			int verb = off;
+			while (verb < end && b[verb] < 0) verb++;
+			int p = verb;
+			while (p < end && b[p] > ' ') p++;
+			final int command = serverCore.this.commands.find(b, verb, p - verb);
+			if (command < 0) {
+				// the client requested a command that does not exist
+				reply(error(serverCommandTable.unknownCommand));
+				return true;
+			}
+			// the argument is the remaining line without surrounding blanks
+			while (p < end && b[p] <= ' ') p++;
+			int q = end;
+			while (q > p && b[q - 1] <= ' ') q--;
+			this.parameter[0] = (p == q) ? "" : new String(b, p, q - p);
+			Object result;
+			String tmp;
+			if (this.transferring && !serverCore.this.commands.concurrent(command)) {
+				// the command is executed after the background transfer, as if the transfer had blocked the session
+				awaitTransfer();
+			}
+			synchronized (this.transferLock) {
+				if (this.closing) return false; // the handler may already have been given back
+				this.executing = true;
+			}
+			this.worker = Thread.currentThread();
+			serverCore.this.busySessions.incrementAndGet();
+			if (!this.transferring) {
+				// the counters and the timer belong to a background transfer as long as it runs
+				this.transferred = 0;
+				this.lastTransferred = 0;
+				this.stalled = false;
+				if (serverCore.this.stallTimeout > 0) {
+					serverCore.this.wheel.schedule(this.timer, System.currentTimeMillis() + serverCore.this.stallTimeout);
+				}
+			}
+			final long start = System.nanoTime();
+			try {
+				// exec command and return value
+				result = serverCore.this.commands.method(command).invoke(this.cmdObject, this.parameter);
+				if (result == null) {
+					/*
+					 * log(2, true, "(NULL RETURNED/STREAM PASSED)");
+					 */
+					return false;
+				} else if (result instanceof String) {
+					final boolean last = ((String) result).startsWith("!");
+					if (this.delay > 0) {
+						defer(last ? ((String) result).substring(1) : (String) result, last);
+						return true;
+					}
+					if (last) {
+						reply(((String) result).substring(1));
+						return false;
+					}
+					// an empty result: the command has started a background transfer, which replies itself
+					if (((String) result).length() > 0) reply((String) result);
+				} else if (result instanceof InputStream) {
+					flush();
+					final ByteBuffer buffer = serverCore.this.buffers.acquire(((InputStream) result).available());
+					try {
+						tmp = send(this.out, (InputStream) result, buffer.array());
+					} finally {
+						serverCore.this.buffers.release(buffer);
+					}
+					if ((tmp.length() > 4)
+							&& (tmp.toUpperCase().startsWith("PASS"))) {
+						log(2, true, "PASS ********");
+					} else {
+						log(2, true, tmp);
 					}
+					tmp = null;
 				}
+			} catch (final InvocationTargetException ite) {
+				// we extract a target exception and let the thread
+				// survive
+				reply(error(ite.getTargetException()));
+			} catch (final IllegalAccessException iae) {
+				// wrong parameters: this can only be an internal
+				// problem
+				reply(error(iae));
+			} catch (final java.lang.ClassCastException e) {
+				// ??
+				reply(error(e));
+			} catch (final IOException e) {
+				throw e;
+			} catch (final Exception e) {
+				// whatever happens: the thread has to survive!
+				reply(error(e));
+			} finally {
+				serverCore.this.statistics.command(command, System.nanoTime() - start);
+				this.worker = null;
+				serverCore.this.busySessions.decrementAndGet();
+				this.lastCommand = System.currentTimeMillis();
+				final boolean closing, last;
+				synchronized (this.transferLock) {
+					this.executing = false;
+					closing = this.closing;
+					last = !this.transferring;
+				}
+				if (!closing) {
+					arm();
+				} else if (last) {
+					// the session had been closed during the command
+					recycle();
+				}
+			}
+			if (serverCore.this.draining && !this.transferring) {
+				// the server shuts down: this had been the last command
+				reply(serverCore.this.drainMessage);
+				return false;
+			}
+			return true;
+		}
 
-				// start dialog
-				byte[] requestBytes = null;
-				boolean terminate = false;
-				int pos;
-				String cmd;
-				String tmp;
-				final Object[] stringParameter = new String[1];
-				while (this.in != null && (requestBytes = readLine()) != null) {
-					this.commandCounter++;
-					this.request = new String(requestBytes);
-					log(2, false, this.request);
+		/**
+		 * @return true if the session waits for the next command
+		 */
+		public boolean idle() {
+			return this.worker == null && !this.suspended && !this.transferring;
+		}
+
+		/**
+		 * send a last reply and close the session
+		 */
+		public void terminate(final String reply) {
+			try {
+				writeLine(reply);
+			} catch (final IOException e) {
+			}
+			close();
+		}
+
+		/**
+		 * count the bytes of a running transfer; a transfer without progress is reported as stalled
+		 * @param bytes number of bytes since the last call
+		 */
+		public void transferred(final long bytes) {
+			this.transferred += bytes;
+		}
+
+		/**
+		 * @return the bytes of the running transfer so far
+		 */
+		public long transferred() {
+			return this.transferred;
+		}
+
+		/**
+		 * run the data transfer of the current command. With background transfers the
+		 * task runs on a thread of its own and the session goes on reading commands:
+		 * the commands that the handler names as concurrent (i.e. ABOR or STAT) are
+		 * executed at once, all others wait until the transfer is done. Otherwise the
+		 * task runs right away on the thread of the command.
+		 * @param task the transfer; it sends the final reply of the command itself
+		 */
+		public void transfer(final Runnable task) {
+			if (serverCore.this.transferExecutor == null) {
+				task.run();
+				return;
+			}
+			synchronized (this.transferLock) {
+				this.transferring = true;
+			}
+			serverCore.this.busySessions.incrementAndGet();
+			serverCore.this.backgroundTransfers.incrementAndGet();
+			serverCore.this.transferExecutor.execute(new Runnable() {
+				public void run() {
+					final Session s = Session.this;
+					s.transferWorker = Thread.currentThread();
 					try {
-						pos = this.request.indexOf(' ');
-						if (pos < 0) {
-							cmd = this.request.trim().toUpperCase();
-							stringParameter[0] = "";
-						} else {
-							cmd = this.request.substring(0, pos).trim().toUpperCase();
-							stringParameter[0] = this.request.substring(pos).trim();
-						}
-
-						// exec command and return value
-						result = serverCore.this.commandClass.getMethod(cmd, stringType).invoke(this.cmdObject, stringParameter);
-						if (result == null) {
-							/*
-							 * log(2, true, "(NULL RETURNED/STREAM PASSED)");
-							 */
-							break;
-						} else if (result instanceof String) {
-							if (((String) result).startsWith("!")) {
-								result = ((String) result).substring(1);
-								terminate = true;
-							}
-							writeLine((String) result);
-						} else if (result instanceof InputStream) {
-							tmp = send(this.out, (InputStream) result);
-							if ((tmp.length() > 4)
-									&& (tmp.toUpperCase().startsWith("PASS"))) {
-								log(2, true, "PASS ********");
-							} else {
-								log(2, true, tmp);
-							}
-							tmp = null;
-						}
-						if (terminate) {
-							break;
-						}
-					} catch (final InvocationTargetException ite) {
-						// we extract a target exception and let the thread
-						// survive
-						final Object[] errorParameter = { ite.getTargetException() };
-						writeLine((String) error.invoke(this.cmdObject, errorParameter));
-					} catch (final NoSuchMethodException nsme) {
-						// the client requested a command that does not exist
-						final Object[] errorParameter = { nsme };
-						writeLine((String) error.invoke(this.cmdObject, errorParameter));
-					} catch (final IllegalAccessException iae) {
-						// wrong parameters: this can only be an internal
-						// problem
-						final Object[] errorParameter = { iae };
-						writeLine((String) error.invoke(this.cmdObject, errorParameter));
-					} catch (final java.lang.ClassCastException e) {
-						// ??
-						final Object[] errorParameter = { e };
-						writeLine((String) error.invoke(this.cmdObject, errorParameter));
-					} catch (final Exception e) {
-						// whatever happens: the thread has to survive!
-						final Object[] errorParameter = { e };
-						writeLine((String) error.invoke(this.cmdObject, errorParameter));
+						task.run();
+					} finally {
+						s.transferWorker = null;
+						s.transferDone();
 					}
 				}
-			} catch (final java.lang.ClassNotFoundException e) {
-				System.out.println("Internal Error: wrapper class not found: " + e.getMessage());
-				System.exit(0);
-			} catch (final java.lang.NoSuchMethodException e) {
-				System.out.println("Internal Error: wrapper does not provide 'greeting' or 'error' method: "
-								+ e.getMessage());
-				System.exit(0);
-			} catch (final java.lang.IllegalAccessException e) {
-				System.out.println("Internal Error: wrapper implements 'greeting' or 'error' method wrong: "
-								+ e.getMessage());
-				System.exit(0);
-			} catch (final java.lang.reflect.InvocationTargetException e) {
-				System.out.println("Internal Error: wrapper calls 'greeting' or 'error' method wrong: "
-								+ e.getMessage());
-				System.exit(0);
-			} catch (final java.io.IOException e) {
-				// connection interruption: more or less normal
+			});
+		}
+
+		// the background transfer has sent its reply
+		private void transferDone() {
+			final boolean closing, last;
+			synchronized (this.transferLock) {
+				this.transferring = false;
+				closing = this.closing;
+				last = !this.executing;
+				this.transferLock.notifyAll();
+			}
+			serverCore.this.backgroundTransfers.decrementAndGet();
+			serverCore.this.busySessions.decrementAndGet();
+			this.lastCommand = System.currentTimeMillis();
+			if (closing) {
+				// the session had been closed during the transfer
+				if (last) recycle();
+			} else if (serverCore.this.draining) {
+				terminate(serverCore.this.drainMessage);
+			} else {
+				arm();
 			}
 		}
 
+		/**
+		 * wait until the background transfer, if there is one, has sent its reply
+		 */
+		public void awaitTransfer() {
+			synchronized (this.transferLock) {
+				while (this.transferring) {
+					try {
+						this.transferLock.wait();
+					} catch (final InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		// set the timer to the idle time-out
+		private void arm() {
+			if (this.transferring) return; // the timer watches the background transfer
+			if (serverCore.this.idleTimeout > 0) {
+				serverCore.this.wheel.schedule(this.timer, this.lastCommand + serverCore.this.idleTimeout);
+			} else {
+				serverCore.this.wheel.cancel(this.timer);
+			}
+		}
+
+		// the session's time-out; called by the wheel
+		private class timeout extends serverTimingWheel.timer {
+			protected void expired(final long now) {
+				final Session s = Session.this;
+				if (s.closed) return;
+				final Thread w = s.worker;
+				if (w != null || s.transferring) {
+					if (serverCore.this.stallTimeout == 0) {
+						// a long command, but not idle
+						serverCore.this.wheel.schedule(this, now + serverCore.this.idleTimeout);
+						return;
+					}
+					// a command is running: check the progress of the transfer
+					final long t = s.transferred;
+					if (t == s.lastTransferred && !s.stalled) {
+						s.stalled = true;
+						serverCore.this.stalledCount.incrementAndGet();
+						s.log(1, false, "transfer stalled, no progress for " + (serverCore.this.stallTimeout / 1000) + " seconds after " + t + " bytes");
+						final Thread stuck = s.transferring ? s.transferWorker : w;
+						if (serverCore.this.termSleepingThreads && stuck != null) stuck.interrupt(); // hopefully this wakes it up.
+					}
+					s.lastTransferred = t;
+					serverCore.this.wheel.schedule(this, now + serverCore.this.stallTimeout);
+					return;
+				}
+				if (serverCore.this.idleTimeout > 0 && now - s.lastCommand >= serverCore.this.idleTimeout) {
+					serverCore.this.idleClosedCount.incrementAndGet();
+					try {
+						s.writeLine("421 idle timeout (" + (serverCore.this.idleTimeout / 1000) + " seconds), closing control connection");
+					} catch (final IOException e) {
+					}
+					s.close();
+				} else {
+					arm();
+				}
+			}
+		}
+
+		/**
+		 * @return the counters and command latencies of the server
+		 */
+		public serverStatistics statistics() {
+			return serverCore.this.statistics;
+		}
+
+		/**
+		 * @return the transfer buffers of the server
+		 */
+		public serverBufferPool buffers() {
+			return serverCore.this.buffers;
+		}
+
+		/**
+		 * @return the open files of the server
+		 */
+		public serverChannelCache channels() {
+			return serverCore.this.channels;
+		}
+
+		private String error(final Throwable e) {
+			return this.cmdObject.error(e);
+		}
+
         public void wrongLogin() {
-            synchronized (loginAttempts) {
-                Object c = loginAttempts.get(this.userAddress);
-                if (c == null) {
-                    loginAttempts.put(this.userAddress, new Integer(1));
-                    printlog(1, this.userAddress.getHostAddress() + "/", "LOGIN CONTROL: wrong login, set login attempt counter = 1");
-                    return;
-                }
-                int cc = ((Integer) c).intValue() + 1;
-                loginAttempts.put(this.userAddress, new Integer(cc));
-                printlog(1, this.userAddress.getHostAddress() + "/", "LOGIN CONTROL: wrong login, set login attempt counter = " + cc);
-            }
+            statistics.failedLogin();
+            final int cc = loginTracker.failed(this.userAddress);
+            printlog(1, this.userAddress.getHostAddress() + "/", "LOGIN CONTROL: wrong login, set login attempt counter = " + cc);
         }
         
         public void successfulLogin() {
-            synchronized (loginAttempts) {
-                Object c = loginAttempts.get(this.userAddress);
-                if (c == null) return;
-                printlog(1, this.userAddress.getHostAddress() + "/", "LOGIN CONTROL: successful login, removed login attempt counter = " + ((Integer) c).intValue());
-                loginAttempts.remove(this.userAddress);
-            }
+            statistics.login();
+            final int c = loginTracker.succeeded(this.userAddress);
+            if (c == 0) return;
+            printlog(1, this.userAddress.getHostAddress() + "/", "LOGIN CONTROL: successful login, removed login attempt counter = " + c);
         }
         
-        public void penaltySleep(long sleep) {
-            synchronized (loginIsWaiting) {
-                if (loginIsWaiting.containsKey(this.userAddress)) {
+        /**
+         * delay the reply of the current command (or the greeting) by a login penalty.
+         * No thread waits for the delay: the session is suspended and the reply is
+         * sent by the scheduler.
+         * @return false if a delay is already running for this client; the connection is closed then
+         */
+        public boolean penaltyDelay(long delay) {
+            if (!loginTracker.beginWait(this.userAddress)) {
+                try {
+                    this.controlSocket.close();
+                } catch (final IOException e) {
+                    System.err.println("ERROR: (internal) " + e);
+                }
+                return false;
+            }
+            this.delay = delay;
+            return true;
+        }
+
+        // keep the reply of a delayed command, or null for a delayed greeting; the session is parked when its engine has let go of it
+        private void defer(final String reply, final boolean terminate) {
+            this.delayedReply = reply;
+            this.delayedTerminate = terminate;
+            this.suspended = true;
+        }
+
+        /**
+         * @return true if the session waits for a delayed reply; its engine must call park() then
+         */
+        public boolean suspended() {
+            return this.suspended;
+        }
+
+        /**
+         * set the task that continues the session after a delay
+         */
+        public void setResumption(final Runnable resumption) {
+            this.resumption = resumption;
+        }
+
+        /**
+         * wait for the end of the delay without a thread; the delayed reply is sent
+         * and the session resumed by the scheduler
+         */
+        public void park() {
+            final long d = this.delay;
+            this.delay = 0;
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    final Session s = Session.this;
+                    loginTracker.endWait(s.userAddress);
+                    s.suspended = false;
                     try {
-                        this.controlSocket.close();
+                        if (s.delayedReply == null) {
+                            s.greeting(); // the greeting had been delayed
+                        } else if (s.delayedReply.length() > 0) {
+                            s.writeLine(s.delayedReply);
+                        }
                     } catch (final IOException e) {
-                        System.err.println("ERROR: (internal) " + e);
+                        s.close();
+                        return;
+                    }
+                    s.delayedReply = null;
+                    if (s.delayedTerminate || serverCore.this.draining) {
+                        s.close();
+                        return;
+                    }
+                    s.arm();
+                    if (s.resumption == null) {
+                        sessionExecutor.execute(s);
+                    } else {
+                        s.resumption.run();
                     }
-                    return;
                 }
-                loginIsWaiting.put(this.userAddress, new Long(System.currentTimeMillis()));
-            }
-            try {
-                Thread.sleep(sleep);
-            } catch (InterruptedException e) {}
-            synchronized (loginIsWaiting) {
-                loginIsWaiting.remove(this.userAddress);
-            }
+            }, d, TimeUnit.MILLISECONDS);
         }
         
         public long penaltyLogin() {
@@ -486,81 +1363,45 @@ public class serverCore implements Runnable {
 	public static final byte lf = 10;
 	public static final byte[] crlf = { cr, lf };
 
-	public static byte[] receive(final PushbackInputStream pbis) {
-		int bufferSize = 0;
-		try {
-			while ((bufferSize = pbis.available()) == 0) {
-				try {
-					Thread.currentThread().join(100);
-				} catch (final InterruptedException e) {
-				}
-			}
-		} catch (final IOException e) {
-			return null;
-		}
-
-		byte[] buffer = new byte[bufferSize];
-		byte[] bufferBkp;
-		bufferSize = 0;
-		int b = 0;
-
-		try {
-			while ((b = pbis.read()) > 31) {
-				// we have a valid byte in b, add it to the buffer
-				if (buffer.length == bufferSize) {
-					// the buffer is full, double its size
-					bufferBkp = buffer;
-					buffer = new byte[bufferSize * 2];
-					java.lang.System.arraycopy(bufferBkp, 0, buffer, 0,
-							bufferSize);
-					bufferBkp = null;
-				}
-				buffer[bufferSize++] = (byte) b;
-			}
-			// we have catched a possible line end
-			if (b == cr) {
-				// maybe a lf follows, read it:
-				if ((b = pbis.read()) != lf)
-					if (b >= 0) {
-						pbis.unread(b); // we push back the byte
-					}
-			}
-
-			// finally shrink buffer
-			bufferBkp = buffer;
-			buffer = new byte[bufferSize];
-			java.lang.System.arraycopy(bufferBkp, 0, buffer, 0, bufferSize);
-			bufferBkp = null;
-
-			// return only the byte[]
-			return buffer;
-		} catch (final IOException e) {
-			return null;
-		}
-	}
-
 	public static void send(final OutputStream os, final String buf)
 			throws IOException {
-		os.write(buf.getBytes());
-		os.write(crlf);
+		final byte[] b = buf.getBytes();
+		final byte[] line = new byte[b.length + 2];
+		System.arraycopy(b, 0, line, 0, b.length);
+		line[b.length] = cr;
+		line[b.length + 1] = lf;
+		os.write(line); // one segment
 		os.flush();
 	}
 
 	public static String send(final OutputStream os, final InputStream is)
 			throws IOException {
 		final int bufferSize = is.available();
-		final byte[] buffer = new byte[((bufferSize < 1) || (bufferSize > 4096)) ? 4096
-				: bufferSize];
+		return send(os, is, new byte[((bufferSize < 1) || (bufferSize > 4096)) ? 4096
+				: bufferSize]);
+	}
+
+	/**
+	 * send a stream and a line end
+	 * @param buffer a transfer buffer
+	 * @return the stream for the log if it is short, otherwise "<LONG STREAM>"
+	 */
+	public static String send(final OutputStream os, final InputStream is, final byte[] buffer)
+			throws IOException {
+		long total = 0;
+		int first = 0;
 		int l;
 		while ((l = is.read(buffer)) > 0) {
 			os.write(buffer, 0, l);
+			if (total == 0) first = l;
+			total += l;
 		}
 		os.write(crlf);
 		os.flush();
-		if (bufferSize > 80)
+		if (total > 80)
 			return "<LONG STREAM>";
 		else
-			return new String(buffer);
-	}	
+			return new String(buffer, 0, first);
+	}
 
 }
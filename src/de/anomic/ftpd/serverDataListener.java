@@ -0,0 +1,376 @@
+/**
+ *  serverDataListener
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverDataListener:
+
+ A few data ports that are shared by all sessions for passive data
+ connections, instead of a port for every transfer. A session that
+ announces a passive port registers an expectation: a data connection
+ from the address of its client, on one of the shared ports. A single
+ thread accepts the connections of all ports with a selector and hands
+ every connection to the oldest expectation of its client address and
+ port; a connection that nobody expects is closed at once, so that no
+ other host can take over a data connection.
+ A port is only announced to one session of a client address at a time,
+ so that every connection belongs to exactly one session. If all ports
+ wait for connections from an address, i.e. from many clients behind one
+ NAT router, the next PASV of that address waits until a port is free;
+ a port is free again as soon as the connection of its session arrives.
+ An expectation that no session waits on expires after the accept time-out,
+ like the listener of a port per transfer, so that a session that sends
+ PASV and never connects cannot hold a shared port of its address; a
+ later connection for it is closed like any unexpected one.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverDataListener implements Runnable {
+
+	private final int first; // the first shared port
+	private final ServerSocketChannel[] listeners; // a listener for every port
+	private final Selector selector; // accepts the connections of all listeners
+	private final HashMap<InetAddress, ArrayList<expectation>> expectations; // client address -> list of expectations, oldest first
+	private final Thread thread;
+	private int rotation; // spreads the sessions over the ports
+	private final AtomicLong matchedCount; // connections that had been handed to a session
+	private final AtomicLong unmatchedCount; // connections that nobody had expected
+	private final AtomicLong missedCount; // expectations that had timed out
+	private final AtomicLong busyCount; // PASV commands that found all ports of their client address waiting
+
+	/**
+	 * a session waits for its data connection
+	 */
+	public class expectation {
+		private final InetAddress client;
+		private final int port;
+		private SocketChannel channel = null; // the connection, when it has arrived
+		private boolean closed = false; // the session does not wait any more
+		private long expires; // the port is given to other sessions after that time; guarded by the listener
+
+		private expectation(final InetAddress client, final int port, final long expires) {
+			this.client = client;
+			this.port = port;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return the port that the client shall connect to
+		 */
+		public int port() {
+			return this.port;
+		}
+
+		/**
+		 * wait for the data connection; the expectation is finished afterwards
+		 * @param timeout max. waiting time in milliseconds
+		 * @return the connection, in blocking mode, or null if the client has not connected in time
+		 */
+		public Socket accept(final long timeout) throws IOException {
+			final long end = System.currentTimeMillis() + timeout;
+			long wait;
+			synchronized (serverDataListener.this) {
+				// the session waits now: the expectation lasts as long as it waits
+				this.expires = end;
+			}
+			synchronized (this) {
+				while (this.channel == null && !this.closed && (wait = end - System.currentTimeMillis()) > 0) {
+					try {
+						wait(wait);
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+			}
+			finish();
+			final SocketChannel c;
+			synchronized (this) {
+				c = this.channel;
+				this.channel = null;
+			}
+			if (c == null) {
+				serverDataListener.this.missedCount.incrementAndGet();
+				return null;
+			}
+			c.configureBlocking(true);
+			return c.socket();
+		}
+
+		/**
+		 * the session does not wait any more; a connection that has arrived but not been taken is closed
+		 */
+		public void cancel() {
+			finish();
+			final SocketChannel c;
+			synchronized (this) {
+				c = this.channel;
+				this.channel = null;
+			}
+			if (c != null) try {
+				c.close();
+			} catch (final IOException e) {}
+		}
+
+		// no connection is handed to this expectation any more
+		private void finish() {
+			synchronized (serverDataListener.this) {
+				final ArrayList<expectation> list = serverDataListener.this.expectations.get(this.client);
+				if (list != null && list.remove(this)) {
+					if (list.isEmpty()) serverDataListener.this.expectations.remove(this.client);
+					serverDataListener.this.notifyAll(); // the port is free for the client again
+				}
+			}
+			synchronized (this) {
+				this.closed = true;
+				notifyAll();
+			}
+		}
+
+		// nobody has connected in time; the caller has removed the expectation from its list
+		private synchronized void expire() {
+			this.closed = true;
+			notifyAll();
+		}
+
+		// a connection has arrived; false if the session does not wait any more
+		private synchronized boolean deliver(final SocketChannel c) {
+			if (this.closed || this.channel != null) return false;
+			this.channel = c;
+			notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * bind the shared ports and start accepting
+	 * @param first the first port
+	 * @param last the last port; the range includes it
+	 */
+	public serverDataListener(final int first, final int last) throws IOException {
+		if (first < 1 || last > 65535 || last < first) throw new IOException("bad port range " + first + "-" + last);
+		this.first = first;
+		this.listeners = new ServerSocketChannel[last - first + 1];
+		this.selector = Selector.open();
+		try {
+			for (int i = 0; i < this.listeners.length; i++) {
+				this.listeners[i] = ServerSocketChannel.open();
+				this.listeners[i].socket().setReuseAddress(true);
+				this.listeners[i].socket().bind(new InetSocketAddress(first + i), 1024);
+				this.listeners[i].configureBlocking(false);
+				this.listeners[i].register(this.selector, SelectionKey.OP_ACCEPT, Integer.valueOf(first + i));
+			}
+		} catch (final IOException e) {
+			close();
+			throw new IOException("cannot bind shared data port: " + e.getMessage());
+		}
+		this.expectations = new HashMap<InetAddress, ArrayList<expectation>>();
+		this.rotation = 0;
+		this.matchedCount = new AtomicLong(0);
+		this.unmatchedCount = new AtomicLong(0);
+		this.missedCount = new AtomicLong(0);
+		this.busyCount = new AtomicLong(0);
+		this.thread = new Thread(this, "serverDataListener");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * announce that a client will connect
+	 * @param client the address of the client, i.e. of its control connection
+	 * @param timeout max. waiting time in milliseconds if all ports wait for connections of the client,
+	 * and the time after which the expectation expires if the session does not wait for it
+	 * @return the expectation with a port that no other session of the client waits on, or null
+	 */
+	public synchronized expectation expect(final InetAddress client, final long timeout) {
+		final long end = System.currentTimeMillis() + timeout;
+		final boolean[] waiting = new boolean[this.listeners.length];
+		ArrayList<expectation> list;
+		expectation e;
+		long now, wait;
+		boolean busy = false;
+		while (true) {
+			list = this.expectations.get(client);
+			for (int i = 0; i < waiting.length; i++) waiting[i] = false;
+			now = System.currentTimeMillis();
+			wait = end - now;
+			if (list != null) for (int i = list.size() - 1; i >= 0; i--) {
+				e = list.get(i);
+				if (e.expires <= now) {
+					// the port is free again
+					list.remove(i);
+					e.expire();
+					continue;
+				}
+				waiting[e.port - this.first] = true;
+				wait = Math.min(wait, e.expires - now);
+			}
+			if (list != null && list.isEmpty()) {
+				this.expectations.remove(client);
+				list = null;
+			}
+			final int start = (this.rotation++ & Integer.MAX_VALUE) % waiting.length;
+			for (int i = 0; i < waiting.length; i++) {
+				final int p = (start + i) % waiting.length;
+				if (waiting[p]) continue;
+				if (list == null) {
+					list = new ArrayList<expectation>(2);
+					this.expectations.put(client, list);
+				}
+				e = new expectation(client, this.first + p, now + timeout);
+				list.add(e);
+				return e;
+			}
+			if (!busy) {
+				busy = true;
+				this.busyCount.incrementAndGet();
+			}
+			if (end <= now) return null;
+			wait = Math.max(1, wait);
+			try {
+				wait(wait);
+			} catch (final InterruptedException ee) {
+				return null;
+			}
+		}
+	}
+
+	public void run() {
+		Iterator<SelectionKey> i;
+		SelectionKey key;
+		SocketChannel c;
+		while (this.selector.isOpen()) {
+			try {
+				this.selector.select();
+				i = this.selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					key = i.next();
+					i.remove();
+					if (!key.isValid() || !key.isAcceptable()) continue;
+					while ((c = ((ServerSocketChannel) key.channel()).accept()) != null) {
+						dispatch(c, ((Integer) key.attachment()).intValue());
+					}
+				}
+			} catch (final IOException e) {
+				// i.e. too many open files; the listener stays and tries again
+				try {Thread.sleep(100);} catch (final InterruptedException ee) {return;}
+			} catch (final ClosedSelectorException e) {
+				return;
+			}
+		}
+	}
+
+	// hand a connection to the oldest expectation of its client and port
+	private void dispatch(final SocketChannel c, final int port) {
+		final InetAddress client = c.socket().getInetAddress();
+		expectation e;
+		synchronized (this) {
+			final ArrayList<expectation> list = this.expectations.get(client);
+			if (list != null) for (int i = 0; i < list.size(); i++) {
+				e = list.get(i);
+				if (e.port == port) {
+					list.remove(i);
+					if (list.isEmpty()) this.expectations.remove(client);
+					notifyAll(); // the port is free for the client again
+					if (e.deliver(c)) {
+						this.matchedCount.incrementAndGet();
+						return;
+					}
+					break;
+				}
+			}
+		}
+		this.unmatchedCount.incrementAndGet();
+		try {
+			c.close();
+		} catch (final IOException ee) {}
+	}
+
+	/**
+	 * close the shared ports; waiting sessions get no connection
+	 */
+	public void close() {
+		try {
+			this.selector.close();
+		} catch (final IOException e) {}
+		for (int i = 0; i < this.listeners.length; i++) {
+			if (this.listeners[i] != null) try {
+				this.listeners[i].close();
+			} catch (final IOException e) {}
+		}
+	}
+
+	public int size() {
+		return this.listeners.length;
+	}
+
+	/**
+	 * @return the number of sessions that wait for a data connection
+	 */
+	public synchronized int waitingCount() {
+		final long now = System.currentTimeMillis();
+		int n = 0;
+		ArrayList<expectation> list;
+		final Iterator<ArrayList<expectation>> i = this.expectations.values().iterator();
+		while (i.hasNext()) {
+			list = i.next();
+			for (int j = 0; j < list.size(); j++) if (list.get(j).expires > now) n++;
+		}
+		return n;
+	}
+
+	public long matchedCount() {
+		return this.matchedCount.get();
+	}
+
+	/**
+	 * @return the number of connections that nobody had expected and that had been closed
+	 */
+	public long unmatchedCount() {
+		return this.unmatchedCount.get();
+	}
+
+	/**
+	 * @return the number of PASV commands that had to wait because all ports waited for their client address
+	 */
+	public long busyCount() {
+		return this.busyCount.get();
+	}
+
+	/**
+	 * @return the number of sessions whose client had not connected in time
+	 */
+	public long missedCount() {
+		return this.missedCount.get();
+	}
+
+}
@@ -33,6 +33,9 @@
  In this example the protocol handler "ftpdProtocol" is assigned. There a class
  named ftpdProtocol.java must be implemented, that implements this interface,
  a serverHandler.
+ Instead of the class name, a serverHandlerFactory can be passed to the
+ serverCore; it creates the handler objects without reflection and may
+ re-use the handlers of terminated sessions.
  Any protocol command can be implemented in either way:
 
  public String      COMMAND(String arg) throws IOException;
@@ -40,7 +43,9 @@
  public void        COMMAND(String arg) throws IOException;
 
  ..where COMMAND is the command that had been passed to the server
- on the terminal connection. The 'arg' argument is the remaining part of
+ on the terminal connection. The command methods are looked up once when
+ the serverCore is created; a command name consists of up to eight
+ upper-case letters or digits. The 'arg' argument is the remaining part of
  the command on the terminal connection.
  If the handler method returns a NULL value, which is especially
  the case if the method implements a 'void' return-value method,
@@ -50,6 +55,9 @@
  If it is wanted that the server terminates right after submitting
  a last line, then this can be indicated by prefixing the return
  value by a '!'-character.
+ An empty String sends no reply; the handler sends it later itself,
+ i.e. when a transfer that runs in the background is done (see
+ serverCore.Session.transfer).
 
  If one of the command methods throws a IOException, then the
  server asks the error - method for a return value on the terminal
@@ -0,0 +1,45 @@
+/**
+ *  serverHandlerFactory
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverHandlerFactory:
+
+ The serverCore asks a factory for a new serverHandler whenever a client
+ connects and gives the handler back when the session has terminated.
+ A factory may therefore keep terminated handlers and re-use them for the
+ next sessions instead of creating new objects.
+ */
+
+package de.anomic.ftpd;
+
+public interface serverHandlerFactory {
+
+	// the class of the handlers that this factory produces;
+	// the serverCore reads the command methods from it once
+	public Class handlerClass();
+
+	// create or re-use a handler and initialize it for a new session.
+	// if the session shall not be served, an IOException is thrown
+	public serverHandler newHandler(serverCore.Session session, serverSwitch switchboard)
+			throws java.io.IOException;
+
+	// the session of the handler has terminated; the handler may be re-used
+	public void recycle(serverHandler handler);
+
+}
@@ -0,0 +1,192 @@
+/**
+ *  serverLineDecoder
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverLineDecoder:
+
+ Splits the bytes that arrive on a control connection into command lines.
+ A line ends with CR, LF or CRLF. The decoder owns one byte buffer per
+ session that is re-used for all lines; a line is returned as an offset and
+ a length within that buffer and is valid until the next call of readLine
+ or nextLine. The buffer grows on demand, but never beyond the maximum line
+ length: a client that sends a longer line gets an IOException.
+ The decoder can either read blocking from an InputStream (thread engine)
+ or be filled from a non-blocking channel (nio engine).
+ */
+
+package de.anomic.ftpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class serverLineDecoder {
+
+	public static final int defaultMaxLineLength = 8192;
+	private static final int initialBufferSize = 512;
+
+	private final InputStream in; // source for blocking reads; null if filled from a channel
+	private final int maxLineLength; // max. number of bytes in a line, without line end
+	private byte[] buffer; // the received bytes
+	private ByteBuffer view; // a ByteBuffer view on buffer for channel reads
+	private int lineStart; // start of the line that had been returned last
+	private int pos; // start of the next line
+	private int scan; // position where the search for the next line end continues
+	private int limit; // end of the received bytes
+	private boolean skipLF; // the last line ended with CR; a directly following LF is dropped
+	private boolean eof; // the source is exhausted
+
+	/**
+	 * @param in the source of blocking reads, or null if the decoder is filled with fill(channel)
+	 * @param maxLineLength max. length of a command line
+	 */
+	public serverLineDecoder(final InputStream in, final int maxLineLength) {
+		this.in = in;
+		this.maxLineLength = maxLineLength;
+		this.buffer = new byte[Math.min(initialBufferSize, maxLineLength + 1)];
+		this.view = null;
+		this.lineStart = 0;
+		this.pos = 0;
+		this.scan = 0;
+		this.limit = 0;
+		this.skipLF = false;
+		this.eof = false;
+	}
+
+	/**
+	 * @return the buffer that holds the line that had been returned last
+	 */
+	public byte[] buffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * @return the offset of the line that had been returned last within buffer()
+	 */
+	public int lineStart() {
+		return this.lineStart;
+	}
+
+	/**
+	 * read the next line; blocks until a complete line is available
+	 * @return the length of the line or -1 if the connection was closed
+	 * @throws IOException on read errors or if a line exceeds the max. line length
+	 */
+	public int readLine() throws IOException {
+		int l;
+		while ((l = nextLine()) < 0) {
+			if (this.eof) {
+				// return a last line without line end, then report the end
+				if (this.pos == this.limit) return -1;
+				this.lineStart = this.pos;
+				this.pos = this.limit;
+				this.scan = this.limit;
+				return this.limit - this.lineStart;
+			}
+			final int space = space(); // may move or replace the buffer
+			final int n = this.in.read(this.buffer, this.limit, space);
+			if (n < 0) {
+				this.eof = true;
+			} else {
+				this.limit += n;
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * read whatever a non-blocking channel has available
+	 * @param channel
+	 * @return the number of bytes read or -1 if the channel was closed
+	 * @throws IOException on read errors or if a line exceeds the max. line length
+	 */
+	public int fill(final ReadableByteChannel channel) throws IOException {
+		final int space = space();
+		if (this.view == null || this.view.array() != this.buffer) this.view = ByteBuffer.wrap(this.buffer);
+		this.view.limit(this.limit + space).position(this.limit);
+		final int n = channel.read(this.view);
+		if (n < 0) {
+			this.eof = true;
+		} else {
+			this.limit += n;
+		}
+		return n;
+	}
+
+	/**
+	 * find the next complete line in the bytes that had been received so far
+	 * @return the length of the line or -1 if no complete line is available
+	 */
+	public int nextLine() {
+		final byte[] b = this.buffer;
+		byte c;
+		for (int i = this.scan; i < this.limit; i++) {
+			c = b[i];
+			if (c != serverCore.cr && c != serverCore.lf) continue;
+			if (c == serverCore.lf && this.skipLF && i == this.pos) {
+				// this is the second half of a CRLF
+				this.skipLF = false;
+				this.pos = i + 1;
+				continue;
+			}
+			this.skipLF = (c == serverCore.cr);
+			this.lineStart = this.pos;
+			this.pos = i + 1;
+			this.scan = this.pos;
+			return i - this.lineStart;
+		}
+		this.scan = this.limit;
+		return -1;
+	}
+
+	/**
+	 * @return true if a complete line had been received that was not yet returned
+	 */
+	public boolean hasLine() {
+		final byte[] b = this.buffer;
+		int i = this.pos;
+		if (this.skipLF && i < this.limit && b[i] == serverCore.lf) i++;
+		for (; i < this.limit; i++) {
+			if (b[i] == serverCore.cr || b[i] == serverCore.lf) return true;
+		}
+		return false;
+	}
+
+	// make room behind limit: move the unfinished line to the front or grow the buffer
+	private int space() throws IOException {
+		if (this.limit < this.buffer.length) return this.buffer.length - this.limit;
+		final int pending = this.limit - this.pos;
+		if (pending > this.maxLineLength) throw new IOException("command line too long");
+		if (this.pos > 0) {
+			System.arraycopy(this.buffer, this.pos, this.buffer, 0, pending);
+			this.scan -= this.pos;
+			this.pos = 0;
+			this.lineStart = 0;
+			this.limit = pending;
+		}
+		if (this.limit == this.buffer.length) {
+			final byte[] b = new byte[Math.min(this.buffer.length * 2, this.maxLineLength + 1)];
+			System.arraycopy(this.buffer, 0, b, 0, this.limit);
+			this.buffer = b;
+		}
+		return this.buffer.length - this.limit;
+	}
+
+}
@@ -0,0 +1,149 @@
+/**
+ *  serverLog
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverLog:
+
+ The log of the server. A thread that logs a line does not write it: it
+ claims the next slot of a pre-allocated ring with an atomic counter, puts
+ the time, the source and the message into the slot and publishes it. A
+ background thread takes the published lines in order, formats the date
+ (once per second, with its own formatter) and writes everything that
+ has been collected with a single write and flush to the console.
+ Sessions therefore never wait for the console; they only wait if the
+ ring is full because the console cannot keep up.
+ The log level is checked by the callers before they build a message.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class serverLog {
+
+	private static final int ringSize = 8192; // number of slots; a power of 2
+	private static final int batchSize = 512; // max. number of lines per write
+
+	// a slot of the ring
+	private static final class event {
+		volatile long sequence = -1; // number of the line that the slot holds; set when the line is published
+		long time;
+		String source;
+		String message;
+	}
+
+	private static final event[] ring = new event[ringSize];
+	private static final AtomicLong claimed = new AtomicLong(0); // number of claimed slots
+	private static volatile long written = 0; // number of lines that the writer has taken
+	private static volatile boolean sleeping = false; // the writer waits for new lines
+	private static final Thread writer;
+	private static final PrintStream console = System.out;
+
+	static {
+		for (int i = 0; i < ringSize; i++) ring[i] = new event();
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "serverLog writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * log a line
+	 * @param source the client or '*' for the server itself
+	 * @param message
+	 */
+	public static void log(final String source, final String message) {
+		final long seq = claimed.getAndIncrement();
+		// wait if the writer is a whole ring behind
+		while (seq - written >= ringSize) {
+			if (sleeping) LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		final event e = ring[(int) seq & (ringSize - 1)];
+		e.time = System.currentTimeMillis();
+		e.source = source;
+		e.message = message;
+		e.sequence = seq; // publish
+		if (sleeping) LockSupport.unpark(writer);
+	}
+
+	/**
+	 * wait until all lines that have been logged so far are written
+	 * @param timeout max. waiting time in milliseconds
+	 */
+	public static void flush(final long timeout) {
+		final long target = claimed.get();
+		final long end = System.currentTimeMillis() + timeout;
+		while (written < target && System.currentTimeMillis() < end) {
+			LockSupport.unpark(writer);
+			try {Thread.sleep(1);} catch (final InterruptedException e) {return;}
+		}
+	}
+
+	// the writer thread
+	private static void write() {
+		final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd HH:mm:ss", Locale.ENGLISH);
+		final StringBuilder batch = new StringBuilder(batchSize * 80);
+		final Date date = new Date();
+		long second = -1;
+		String dateString = "";
+		long next = 0;
+		event e;
+		int n;
+		while (true) {
+			n = 0;
+			batch.setLength(0);
+			while (n < batchSize) {
+				e = ring[(int) next & (ringSize - 1)];
+				if (e.sequence != next) break; // not yet published
+				if (e.time / 1000 != second) {
+					second = e.time / 1000;
+					date.setTime(e.time);
+					dateString = formatter.format(date);
+				}
+				batch.append(dateString).append(' ').append(e.source).append(' ').append(e.message).append('\n');
+				e.source = null;
+				e.message = null;
+				next++;
+				n++;
+			}
+			if (n > 0) {
+				written = next; // the slots can be re-used
+				console.print(batch);
+				console.flush();
+				continue;
+			}
+			// nothing to do: wait for the next line
+			sleeping = true;
+			if (ring[(int) next & (ringSize - 1)].sequence != next) {
+				LockSupport.parkNanos(100000000L);
+			}
+			sleeping = false;
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+/**
+ *  serverLoginTracker
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverLoginTracker:
+
+ Remembers the failed log-in attempts of client addresses for the
+ brute-force protection of the serverCore. The failures of an address are
+ counted in a sliding window: the count of the current window plus the
+ count of the previous window, weighted by the part of it that still lies
+ within the window length. An address without failures for two windows is
+ forgotten. The addresses are spread over a number of stripes, each with
+ its own lock, so that sessions of different clients do not wait for each
+ other. Each stripe keeps its addresses in least-recently-used order and
+ drops the oldest one if it is full; this bounds the memory even if a
+ distributed password spray comes from many addresses.
+ */
+
+package de.anomic.ftpd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverLoginTracker {
+
+	private final stripe[] stripes;
+	private final long window; // length of the sliding window in milliseconds
+	private final AtomicLong evictedCount; // addresses that were dropped because a stripe was full
+
+	// the log-in history of one address
+	private static class entry {
+		int current; // failures in the current window
+		int previous; // failures in the previous window
+		long windowStart; // start of the current window
+		boolean waiting; // a penalty delay is running for this address
+		entry(final long now) {
+			this.current = 0;
+			this.previous = 0;
+			this.windowStart = now;
+			this.waiting = false;
+		}
+	}
+
+	// a part of the addresses with its own lock
+	private class stripe extends LinkedHashMap<Object, entry> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+		stripe(final int capacity) {
+			super(16, 0.75f, true); // access order
+			this.capacity = capacity;
+		}
+		protected boolean removeEldestEntry(final Map.Entry<Object, entry> eldest) {
+			if (size() <= this.capacity) return false;
+			serverLoginTracker.this.evictedCount.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * @param window length of the sliding window in milliseconds
+	 * @param maxEntries max. number of addresses that are remembered
+	 */
+	public serverLoginTracker(final long window, final int maxEntries) {
+		this.window = Math.max(1, window);
+		int n = 1;
+		while (n < 64 && n * 256 < maxEntries) n <<= 1;
+		this.stripes = new stripe[n];
+		for (int i = 0; i < n; i++) this.stripes[i] = new stripe(Math.max(1, maxEntries / n));
+		this.evictedCount = new AtomicLong(0);
+	}
+
+	private stripe stripe(final Object address) {
+		final int h = address.hashCode();
+		return this.stripes[(h ^ (h >>> 16)) & (this.stripes.length - 1)];
+	}
+
+	// move the windows forward to the current time
+	private void advance(final entry r, final long now) {
+		final long k = (now - r.windowStart) / this.window;
+		if (k <= 0) return;
+		r.previous = (k == 1) ? r.current : 0;
+		r.current = 0;
+		r.windowStart += k * this.window;
+	}
+
+	// the weighted number of failures within the sliding window
+	private int count(final entry r, final long now) {
+		advance(r, now);
+		return r.current + (int) (r.previous * (this.window - (now - r.windowStart)) / this.window);
+	}
+
+	/**
+	 * @return the number of failed log-ins of the address within the window
+	 */
+	public int failures(final Object address) {
+		final stripe s = stripe(address);
+		synchronized (s) {
+			final entry r = s.get(address);
+			if (r == null) return 0;
+			return count(r, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * count a failed log-in
+	 * @return the number of failed log-ins of the address within the window, including this one
+	 */
+	public int failed(final Object address) {
+		final long now = System.currentTimeMillis();
+		final stripe s = stripe(address);
+		synchronized (s) {
+			entry r = s.get(address);
+			if (r == null) {
+				r = new entry(now);
+				s.put(address, r);
+			}
+			advance(r, now);
+			r.current++;
+			return count(r, now);
+		}
+	}
+
+	/**
+	 * forget the failures of an address after a successful log-in
+	 * @return the number of failures that had been counted
+	 */
+	public int succeeded(final Object address) {
+		final stripe s = stripe(address);
+		synchronized (s) {
+			final entry r = s.get(address);
+			if (r == null) return 0;
+			final int c = count(r, System.currentTimeMillis());
+			if (r.waiting) {
+				r.current = 0;
+				r.previous = 0;
+			} else {
+				s.remove(address);
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * mark the address as waiting for a penalty delay
+	 * @return false if a delay is already running for this address
+	 */
+	public boolean beginWait(final Object address) {
+		final stripe s = stripe(address);
+		synchronized (s) {
+			entry r = s.get(address);
+			if (r == null) {
+				r = new entry(System.currentTimeMillis());
+				s.put(address, r);
+			}
+			if (r.waiting) return false;
+			r.waiting = true;
+			return true;
+		}
+	}
+
+	/**
+	 * the penalty delay of an address has ended
+	 */
+	public void endWait(final Object address) {
+		final stripe s = stripe(address);
+		synchronized (s) {
+			final entry r = s.get(address);
+			if (r == null) return;
+			r.waiting = false;
+			if (count(r, System.currentTimeMillis()) == 0) s.remove(address);
+		}
+	}
+
+	/**
+	 * @return true if a penalty delay is running for the address
+	 */
+	public boolean isWaiting(final Object address) {
+		final stripe s = stripe(address);
+		synchronized (s) {
+			final entry r = s.get(address);
+			return r != null && r.waiting;
+		}
+	}
+
+	/**
+	 * forget all addresses without failures in the window; one stripe is locked at a time
+	 * @return the number of removed addresses
+	 */
+	public int expire() {
+		final long now = System.currentTimeMillis();
+		int removed = 0;
+		Iterator<entry> i;
+		entry r;
+		for (int j = 0; j < this.stripes.length; j++) {
+			synchronized (this.stripes[j]) {
+				i = this.stripes[j].values().iterator();
+				while (i.hasNext()) {
+					r = i.next();
+					if (!r.waiting && count(r, now) == 0) {
+						i.remove();
+						removed++;
+					}
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @param maxAttempts the number of failures at which an address is refused
+	 * @return the number of addresses that are refused: addresses with a running penalty delay
+	 *  or with at least maxAttempts failures within the window
+	 */
+	public int blocked(final int maxAttempts) {
+		final long now = System.currentTimeMillis();
+		int n = 0;
+		Iterator<entry> i;
+		entry r;
+		for (int j = 0; j < this.stripes.length; j++) {
+			synchronized (this.stripes[j]) {
+				i = this.stripes[j].values().iterator();
+				while (i.hasNext()) {
+					r = i.next();
+					if (r.waiting || count(r, now) >= maxAttempts) n++;
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of remembered addresses
+	 */
+	public int size() {
+		int n = 0;
+		for (int j = 0; j < this.stripes.length; j++) {
+			synchronized (this.stripes[j]) {
+				n += this.stripes[j].size();
+			}
+		}
+		return n;
+	}
+
+	public long evictedCount() {
+		return this.evictedCount.get();
+	}
+
+}
@@ -0,0 +1,448 @@
+/**
+ *  serverMetrics
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverMetrics:
+
+ Makes the counters of a serverCore available to monitoring tools. Three
+ MBeans are registered at the platform MBean server: the sessions and
+ connections of the serverCore, the data transfers, and the configuration
+ of the switchboard. The configuration MBean also offers the actions of
+ the switchboard as operations, i.e. to reload the permissions or to
+ drain the server.
+ Optionally the same counters are served in the Prometheus text format
+ by a small HTTP listener. The listener is bound to the loopback address
+ only; a scraper on another host needs a local agent or a tunnel.
+ Rates are computed when they are read, from the change of a counter
+ since the previous reading, so no thread is needed to sample them.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.StandardMBean;
+
+public class serverMetrics {
+
+	private final serverCore server;
+	private final serverSwitch switchboard;
+	private final rate acceptRate; // accepted connections per second
+	private final rate byteRate; // transferred bytes per second
+	private ServerSocket listener; // the HTTP listener; null if there is none
+	private serverContentCache cache; // the cache for downloads; null if there is none
+	private serverSharedReader sharedReader; // the reader for concurrent downloads; null if there is none
+	private serverPortRange ports; // the passive data ports; null if there is no range
+	private serverDataListener dataListener; // the shared passive data ports; null if there are none
+
+	/**
+	 * the counters of the serverCore
+	 */
+	public interface coreMBean {
+		public int getSessions();
+		public int getBusySessions();
+		public int getQueueDepth();
+		public long getAcceptedCount();
+		public double getAcceptRate();
+		public long getRejectedCount();
+		public long getExpiredCount();
+		public long getBlockedCount();
+		public int getBlockedAddresses();
+		public int getTrackedAddresses();
+		public long getIdleClosedCount();
+		public long getStalledCount();
+		public long getLoginCount();
+		public long getFailedLoginCount();
+		public boolean isDraining();
+	}
+
+	/**
+	 * the counters of the data transfers
+	 */
+	public interface transfersMBean {
+		public int getActiveTransfers();
+		public int getBackgroundTransfers();
+		public long getTransferCount();
+		public long getBytesIn();
+		public long getBytesOut();
+		public double getBytesPerSecond();
+		public long getBufferAcquiredCount();
+		public long getBufferAllocatedCount();
+		public long getBufferDroppedCount();
+		public long getBufferPooledBytes();
+		public long getContentCacheHitCount();
+		public long getContentCacheMissCount();
+		public long getContentCacheEvictedCount();
+		public long getContentCacheUsedBytes();
+	}
+
+	// the change of a counter per second between two readings
+	private static class rate {
+		private long lastValue = 0;
+		private long lastTime = System.currentTimeMillis();
+		private double rate = 0.0;
+		public synchronized double get(final long value) {
+			final long now = System.currentTimeMillis();
+			if (now - this.lastTime >= 1000) {
+				this.rate = (value - this.lastValue) * 1000.0 / (now - this.lastTime);
+				this.lastValue = value;
+				this.lastTime = now;
+			}
+			return this.rate;
+		}
+	}
+
+	private class core implements coreMBean {
+		public int getSessions() {return serverMetrics.this.server.admission().sessions();}
+		public int getBusySessions() {return serverMetrics.this.server.busySessions();}
+		public int getQueueDepth() {return serverMetrics.this.server.admission().queueDepth();}
+		public long getAcceptedCount() {return serverMetrics.this.server.acceptedCount();}
+		public double getAcceptRate() {return serverMetrics.this.acceptRate.get(getAcceptedCount());}
+		public long getRejectedCount() {return serverMetrics.this.server.admission().rejectedCount();}
+		public long getExpiredCount() {return serverMetrics.this.server.admission().expiredCount();}
+		public long getBlockedCount() {return serverMetrics.this.server.blockedCount();}
+		public int getBlockedAddresses() {return serverMetrics.this.server.blockedAddresses();}
+		public int getTrackedAddresses() {return serverMetrics.this.server.loginTracker().size();}
+		public long getIdleClosedCount() {return serverMetrics.this.server.idleClosedCount();}
+		public long getStalledCount() {return serverMetrics.this.server.stalledCount();}
+		public long getLoginCount() {return serverMetrics.this.server.statistics().loginCount();}
+		public long getFailedLoginCount() {return serverMetrics.this.server.statistics().failedLoginCount();}
+		public boolean isDraining() {return serverMetrics.this.server.draining();}
+	}
+
+	private class transfers implements transfersMBean {
+		public int getActiveTransfers() {return serverMetrics.this.server.statistics().activeTransfers();}
+		public int getBackgroundTransfers() {return serverMetrics.this.server.backgroundTransfers();}
+		public long getTransferCount() {return serverMetrics.this.server.statistics().transfers().count();}
+		public long getBytesIn() {return serverMetrics.this.server.statistics().bytesIn();}
+		public long getBytesOut() {return serverMetrics.this.server.statistics().bytesOut();}
+		public double getBytesPerSecond() {return serverMetrics.this.byteRate.get(getBytesIn() + getBytesOut());}
+		public long getBufferAcquiredCount() {return serverMetrics.this.server.buffers().acquiredCount();}
+		public long getBufferAllocatedCount() {return serverMetrics.this.server.buffers().missCount();}
+		public long getBufferDroppedCount() {return serverMetrics.this.server.buffers().droppedCount();}
+		public long getBufferPooledBytes() {return serverMetrics.this.server.buffers().pooledBytes();}
+		public long getContentCacheHitCount() {return (serverMetrics.this.cache == null) ? 0 : serverMetrics.this.cache.hitCount();}
+		public long getContentCacheMissCount() {return (serverMetrics.this.cache == null) ? 0 : serverMetrics.this.cache.missCount();}
+		public long getContentCacheEvictedCount() {return (serverMetrics.this.cache == null) ? 0 : serverMetrics.this.cache.evictedCount();}
+		public long getContentCacheUsedBytes() {return (serverMetrics.this.cache == null) ? 0 : serverMetrics.this.cache.used();}
+	}
+
+	// the configuration of the switchboard; every key is an attribute, the actions are operations
+	private class config implements DynamicMBean {
+
+		public Object getAttribute(final String name) throws AttributeNotFoundException {
+			final String value = serverMetrics.this.switchboard.getConfig(name, null);
+			if (value == null) throw new AttributeNotFoundException(name);
+			return value;
+		}
+
+		public void setAttribute(final Attribute attribute) {
+			serverMetrics.this.switchboard.setConfig(attribute.getName(), String.valueOf(attribute.getValue()));
+		}
+
+		public AttributeList getAttributes(final String[] names) {
+			final AttributeList list = new AttributeList();
+			String value;
+			for (int i = 0; i < names.length; i++) {
+				value = serverMetrics.this.switchboard.getConfig(names[i], null);
+				if (value != null) list.add(new Attribute(names[i], value));
+			}
+			return list;
+		}
+
+		public AttributeList setAttributes(final AttributeList attributes) {
+			final AttributeList list = new AttributeList();
+			Attribute a;
+			for (int i = 0; i < attributes.size(); i++) {
+				a = (Attribute) attributes.get(i);
+				setAttribute(a);
+				list.add(a);
+			}
+			return list;
+		}
+
+		public Object invoke(final String action, final Object[] params, final String[] signature) throws ReflectionException {
+			final Hashtable<String, String> input = new Hashtable<String, String>();
+			if (params != null && params.length > 0 && params[0] != null) input.put("timeout", params[0].toString());
+			final Hashtable result = serverMetrics.this.switchboard.action(action, input);
+			if (result == null) throw new ReflectionException(new NoSuchMethodException(action), "unknown action " + action);
+			return result.toString();
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			final Vector<String> keys = new Vector<String>();
+			final Enumeration e = serverMetrics.this.switchboard.configKeys();
+			while (e.hasMoreElements()) keys.addElement((String) e.nextElement());
+			final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[keys.size()];
+			for (int i = 0; i < attributes.length; i++) {
+				attributes[i] = new MBeanAttributeInfo(keys.elementAt(i), String.class.getName(),
+						"configuration value; most values take effect after a restart", true, true, false);
+			}
+			final MBeanOperationInfo[] operations = new MBeanOperationInfo[] {
+					new MBeanOperationInfo("reloadPermissions", "read ftpd.groups and ftpd.accounts again",
+							new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.ACTION),
+					new MBeanOperationInfo("drain", "stop accepting connections and terminate the sessions when their commands are done",
+							new MBeanParameterInfo[] {new MBeanParameterInfo("timeout", Long.class.getName(), "max. time in milliseconds to wait for running commands")},
+							String.class.getName(), MBeanOperationInfo.ACTION)
+			};
+			return new MBeanInfo(getClass().getName(), "configuration of the server", attributes, null, operations, null);
+		}
+	}
+
+	/**
+	 * @param server the server whose counters are shown
+	 * @param switchboard the configuration and the actions of the server
+	 */
+	public serverMetrics(final serverCore server, final serverSwitch switchboard) {
+		this.server = server;
+		this.switchboard = switchboard;
+		this.acceptRate = new rate();
+		this.byteRate = new rate();
+		this.listener = null;
+		this.cache = null;
+		this.sharedReader = null;
+		this.ports = null;
+		this.dataListener = null;
+	}
+
+	/**
+	 * show also the counters of a content cache
+	 */
+	public void setContentCache(final serverContentCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * show also the counters of a shared reader
+	 */
+	public void setSharedReader(final serverSharedReader sharedReader) {
+		this.sharedReader = sharedReader;
+	}
+
+	/**
+	 * show also the counters of the passive data ports
+	 */
+	public void setPassive(final serverPortRange ports, final serverDataListener dataListener) {
+		this.ports = ports;
+		this.dataListener = dataListener;
+	}
+
+	/**
+	 * register the MBeans at the platform MBean server
+	 * @param name distinguishes the MBeans of several servers in one process, i.e. the port
+	 */
+	public void register(final String name) throws IOException {
+		try {
+			final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			mbs.registerMBean(new StandardMBean(new core(), coreMBean.class), new ObjectName("de.anomic.ftpd:type=serverCore,name=" + name));
+			mbs.registerMBean(new StandardMBean(new transfers(), transfersMBean.class), new ObjectName("de.anomic.ftpd:type=transfers,name=" + name));
+			mbs.registerMBean(new config(), new ObjectName("de.anomic.ftpd:type=config,name=" + name));
+		} catch (final Exception e) {
+			throw new IOException("cannot register MBeans: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * serve the counters in the Prometheus text format at http://127.0.0.1:port/metrics
+	 * @param port the port of the listener
+	 */
+	public void listen(final int port) throws IOException {
+		this.listener = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+		final Thread t = new Thread("serverMetrics http") {
+			public void run() {
+				Socket s;
+				while (true) {
+					try {
+						s = serverMetrics.this.listener.accept();
+					} catch (final IOException e) {
+						return; // the listener has been closed
+					}
+					try {
+						s.setSoTimeout(5000);
+						serve(s);
+					} catch (final IOException e) {
+						// the scraper went away
+					} finally {
+						try {s.close();} catch (final IOException e) {}
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * stop the HTTP listener
+	 */
+	public void close() {
+		if (this.listener == null) return;
+		try {this.listener.close();} catch (final IOException e) {}
+	}
+
+	// answer one HTTP request
+	private void serve(final Socket s) throws IOException {
+		final InputStream in = s.getInputStream();
+		final StringBuffer request = new StringBuffer();
+		// read the request line and skip the header
+		int c, lineLength = 0;
+		boolean firstLine = true;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				if (lineLength == 0) break; // empty line: end of header
+				firstLine = false;
+				lineLength = 0;
+			} else if (c != '\r') {
+				if (firstLine && request.length() < 1024) request.append((char) c);
+				lineLength++;
+			}
+		}
+		final String r = request.toString();
+		final String status;
+		final String body;
+		if (r.startsWith("GET /metrics ") || r.equals("GET /metrics")) {
+			status = "200 OK";
+			body = prometheus();
+		} else {
+			status = "404 Not Found";
+			body = "not found\n";
+		}
+		final byte[] b = body.getBytes("UTF-8");
+		final OutputStream out = s.getOutputStream();
+		out.write(("HTTP/1.0 " + status + "\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Content-Length: " + b.length + "\r\n"
+				+ "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+		out.write(b);
+		out.flush();
+	}
+
+	/**
+	 * @return all counters in the Prometheus text format
+	 */
+	public String prometheus() {
+		final StringBuffer buf = new StringBuffer(4096);
+		final serverStatistics stats = this.server.statistics();
+		final serverAdmission admission = this.server.admission();
+		metric(buf, "ftpd_sessions", "gauge", "Running sessions.", admission.sessions());
+		metric(buf, "ftpd_sessions_busy", "gauge", "Sessions that execute a command.", this.server.busySessions());
+		metric(buf, "ftpd_admission_queue_depth", "gauge", "Connections that wait for a session.", admission.queueDepth());
+		metric(buf, "ftpd_connections_accepted_total", "counter", "Accepted control connections.", this.server.acceptedCount());
+		metric(buf, "ftpd_connections_rejected_total", "counter", "Connections rejected because the admission queue was full.", admission.rejectedCount());
+		metric(buf, "ftpd_connections_expired_total", "counter", "Connections rejected after waiting too long.", admission.expiredCount());
+		metric(buf, "ftpd_connections_blocked_total", "counter", "Connections refused because of failed log-ins.", this.server.blockedCount());
+		metric(buf, "ftpd_blocked_addresses", "gauge", "Client addresses that are refused because of failed log-ins.", this.server.blockedAddresses());
+		metric(buf, "ftpd_tracked_addresses", "gauge", "Client addresses with failed log-ins.", this.server.loginTracker().size());
+		metric(buf, "ftpd_sessions_started_total", "counter", "Sessions that had been started.", stats.sessionCount());
+		metric(buf, "ftpd_sessions_idle_closed_total", "counter", "Sessions closed because of the idle time-out.", this.server.idleClosedCount());
+		metric(buf, "ftpd_transfers_stalled_total", "counter", "Transfers that had stalled.", this.server.stalledCount());
+		metric(buf, "ftpd_logins_total", "counter", "Successful log-ins.", stats.loginCount());
+		metric(buf, "ftpd_logins_failed_total", "counter", "Failed log-ins.", stats.failedLoginCount());
+		metric(buf, "ftpd_transfers_active", "gauge", "Running data transfers.", stats.activeTransfers());
+		metric(buf, "ftpd_transfers_background", "gauge", "Data transfers that run in the background of their session.", this.server.backgroundTransfers());
+		metric(buf, "ftpd_bytes_received_total", "counter", "Bytes received on data connections.", stats.bytesIn());
+		metric(buf, "ftpd_bytes_sent_total", "counter", "Bytes sent on data connections.", stats.bytesOut());
+		final serverBufferPool buffers = this.server.buffers();
+		metric(buf, "ftpd_buffers_acquired_total", "counter", "Transfer buffers taken from the pool.", buffers.acquiredCount());
+		metric(buf, "ftpd_buffers_allocated_total", "counter", "Transfer buffers that had to be allocated because the pool had none.", buffers.missCount());
+		metric(buf, "ftpd_buffers_dropped_total", "counter", "Transfer buffers left to the garbage collector because the pool was full.", buffers.droppedCount());
+		metric(buf, "ftpd_buffers_pooled_bytes", "gauge", "Bytes of the free buffers in the pool.", buffers.pooledBytes());
+		final serverChannelCache channels = this.server.channels();
+		metric(buf, "ftpd_open_files", "gauge", "Files that are kept open for downloads.", channels.size());
+		metric(buf, "ftpd_open_files_reused_total", "counter", "Downloads that used a file which was already open.", channels.hitCount());
+		metric(buf, "ftpd_open_files_opened_total", "counter", "Files that had been opened for downloads.", channels.openCount());
+		if (this.cache != null) {
+			metric(buf, "ftpd_content_cache_hits_total", "counter", "Downloads served from the content cache.", this.cache.hitCount());
+			metric(buf, "ftpd_content_cache_misses_total", "counter", "Downloads of cacheable files that were read from the disk.", this.cache.missCount());
+			metric(buf, "ftpd_content_cache_evicted_total", "counter", "Files dropped from the content cache to make room.", this.cache.evictedCount());
+			metric(buf, "ftpd_content_cache_files", "gauge", "Files in the content cache.", this.cache.size());
+			metric(buf, "ftpd_content_cache_used_bytes", "gauge", "Bytes of the files in the content cache.", this.cache.used());
+		}
+		if (this.sharedReader != null) {
+			metric(buf, "ftpd_shared_read_chunks_read_total", "counter", "Chunks read from files for concurrent downloads.", this.sharedReader.readCount());
+			metric(buf, "ftpd_shared_read_chunks_shared_total", "counter", "Chunks sent from memory that another download had read.", this.sharedReader.sharedCount());
+			metric(buf, "ftpd_shared_read_fallbacks_total", "counter", "Downloads that fell out of the window and read the file on their own.", this.sharedReader.fallbackCount());
+		}
+		if (this.ports != null) {
+			metric(buf, "ftpd_passive_ports_used", "gauge", "Passive data ports that are taken by sessions.", this.ports.usedCount());
+			metric(buf, "ftpd_passive_ports_exhausted_total", "counter", "PASV commands that found no free data port.", this.ports.exhaustedCount());
+		}
+		if (this.dataListener != null) {
+			metric(buf, "ftpd_passive_waiting", "gauge", "Sessions that wait for a data connection on a shared port.", this.dataListener.waitingCount());
+			metric(buf, "ftpd_passive_matched_total", "counter", "Data connections on shared ports that were given to a session.", this.dataListener.matchedCount());
+			metric(buf, "ftpd_passive_unexpected_total", "counter", "Data connections on shared ports that nobody expected.", this.dataListener.unmatchedCount());
+			metric(buf, "ftpd_passive_timeouts_total", "counter", "Sessions whose client did not connect to a shared port in time.", this.dataListener.missedCount());
+		}
+		metric(buf, "ftpd_draining", "gauge", "1 if the server shuts down.", this.server.draining() ? 1 : 0);
+		buf.append("# HELP ftpd_transfer_duration_seconds Duration of the data transfers.\n");
+		buf.append("# TYPE ftpd_transfer_duration_seconds summary\n");
+		summary(buf, "ftpd_transfer_duration_seconds", "", stats.transfers());
+		buf.append("# HELP ftpd_command_duration_seconds Execution time of the commands.\n");
+		buf.append("# TYPE ftpd_command_duration_seconds summary\n");
+		serverStatistics.histogram h;
+		for (int i = 0; i < stats.size(); i++) {
+			h = stats.command(i);
+			if (h.count() > 0) summary(buf, "ftpd_command_duration_seconds", "verb=\"" + stats.name(i) + "\",", h);
+		}
+		return buf.toString();
+	}
+
+	private static void metric(final StringBuffer buf, final String name, final String type, final String help, final long value) {
+		buf.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		buf.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		buf.append(name).append(' ').append(value).append('\n');
+	}
+
+	// quantiles and count of a histogram of microseconds
+	private static void summary(final StringBuffer buf, final String name, final String labels, final serverStatistics.histogram h) {
+		final double[] q = {50.0, 99.0, 99.9};
+		final String[] qs = {"0.5", "0.99", "0.999"};
+		for (int i = 0; i < q.length; i++) {
+			buf.append(name).append("{").append(labels).append("quantile=\"").append(qs[i]).append("\"} ")
+					.append(h.percentile(q[i]) / 1000000.0).append('\n');
+		}
+		buf.append(name).append("_sum");
+		if (labels.length() > 0) buf.append('{').append(labels, 0, labels.length() - 1).append('}');
+		buf.append(' ').append(h.sum() / 1000000.0).append('\n');
+		buf.append(name).append("_count");
+		if (labels.length() > 0) buf.append('{').append(labels, 0, labels.length() - 1).append('}');
+		buf.append(' ').append(h.count()).append('\n');
+	}
+
+}
@@ -0,0 +1,244 @@
+/**
+ *  serverPortRange
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverPortRange:
+
+ The ports of a range, i.e. the ports that a firewall opens for passive
+ data connections, handed out to the sessions. Every port has a bit in a
+ bitmap of atomic longs; a port is taken by setting its bit with a
+ compare-and-set and given back by clearing it, so sessions never wait
+ for each other. The search for a free port starts where the last search
+ has ended, so it usually finds one in the first word it looks at.
+ The listeners of the ports can be bound in advance; then taking a port
+ costs no system call except for the removal of connections that have
+ been left in the queue of the listener by an earlier client. Otherwise
+ a listener is bound when the port is taken, and a port that is used by
+ another program is skipped.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class serverPortRange {
+
+	private final int first; // the first port of the range
+	private final int size; // the number of ports
+	private final AtomicLongArray used; // a bit for every port; set if the port is taken
+	private final AtomicInteger next; // the word where the next search begins
+	private final ServerSocketChannel[] listeners; // bound listeners of all ports; null if they are bound on demand
+	private final int timeout; // accept timeout of the listeners in milliseconds
+	private final AtomicLong acquiredCount; // ports that had been taken
+	private final AtomicLong exhaustedCount; // requests that found no free port
+
+	/**
+	 * @param first the first port
+	 * @param last the last port; the range includes it
+	 * @param prebind if true, the listeners of all ports are bound now and stay bound
+	 * @param timeout accept timeout of the listeners in milliseconds
+	 */
+	public serverPortRange(final int first, final int last, final boolean prebind, final int timeout) throws IOException {
+		if (first < 1 || last > 65535 || last < first) throw new IOException("bad port range " + first + "-" + last);
+		this.first = first;
+		this.size = last - first + 1;
+		this.used = new AtomicLongArray((this.size + 63) / 64);
+		this.next = new AtomicInteger(0);
+		this.timeout = timeout;
+		this.acquiredCount = new AtomicLong(0);
+		this.exhaustedCount = new AtomicLong(0);
+		if (prebind) {
+			this.listeners = new ServerSocketChannel[this.size];
+			try {
+				for (int i = 0; i < this.size; i++) this.listeners[i] = bind(first + i);
+			} catch (final IOException e) {
+				close();
+				throw new IOException("cannot bind passive port: " + e.getMessage());
+			}
+		} else {
+			this.listeners = null;
+		}
+	}
+
+	/**
+	 * parse a range like '50000-50099'
+	 * @return {first, last}, or null if the range is empty or not valid
+	 */
+	public static int[] parse(final String range) {
+		if (range == null) return null;
+		final int p = range.indexOf('-');
+		try {
+			final int first = Integer.parseInt(range.substring(0, (p < 0) ? range.length() : p).trim());
+			final int last = (p < 0) ? first : Integer.parseInt(range.substring(p + 1).trim());
+			return new int[]{first, last};
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private ServerSocketChannel bind(final int port) throws IOException {
+		final ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			final ServerSocket socket = channel.socket();
+			socket.setReuseAddress(true);
+			socket.bind(new InetSocketAddress(port));
+			socket.setSoTimeout(this.timeout);
+			return channel;
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// take a free port of the bitmap; -1 if all are taken
+	private int take() {
+		final int words = this.used.length();
+		final int start = this.next.get();
+		int w;
+		long bits, free;
+		for (int i = 0; i < words; i++) {
+			w = (start + i) % words;
+			while ((bits = this.used.get(w)) != -1L) {
+				free = ~bits & -(~bits); // the lowest free bit
+				final int index = w * 64 + Long.numberOfTrailingZeros(free);
+				if (index >= this.size) break; // only the bits beyond the range are free
+				if (this.used.compareAndSet(w, bits, bits | free)) {
+					this.next.set(w);
+					return index;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// give a port of the bitmap back
+	private void free(final int index) {
+		final int w = index / 64;
+		final long bit = 1L << (index % 64);
+		long bits;
+		do {
+			bits = this.used.get(w);
+		} while (!this.used.compareAndSet(w, bits, bits & ~bit));
+	}
+
+	/**
+	 * take a port and its listener
+	 * @return a bound listener, or null if all ports are taken
+	 */
+	public ServerSocket acquire() throws IOException {
+		int[] busy = null; // ports that are used by other programs; their bits are kept set until the end of the search
+		int busyCount = 0;
+		try {
+			int index;
+			while ((index = take()) >= 0) {
+				if (this.listeners != null) {
+					final ServerSocketChannel channel = this.listeners[index];
+					// a connection of an earlier client must not become the data connection of this one
+					channel.configureBlocking(false);
+					SocketChannel stale;
+					while ((stale = channel.accept()) != null) stale.close();
+					channel.configureBlocking(true);
+					this.acquiredCount.incrementAndGet();
+					return channel.socket();
+				}
+				try {
+					final ServerSocket socket = bind(this.first + index).socket();
+					this.acquiredCount.incrementAndGet();
+					return socket;
+				} catch (final IOException e) {
+					if (busy == null) busy = new int[this.size];
+					busy[busyCount++] = index;
+				}
+			}
+			this.exhaustedCount.incrementAndGet();
+			return null;
+		} finally {
+			for (int i = 0; i < busyCount; i++) free(busy[i]);
+		}
+	}
+
+	/**
+	 * give a port back; a listener that has been bound on demand is closed
+	 * @param socket a listener from acquire()
+	 */
+	public void release(final ServerSocket socket) {
+		final int index = socket.getLocalPort() - this.first;
+		if (index < 0 || index >= this.size) return;
+		if (this.listeners == null) {
+			try {
+				socket.close();
+			} catch (final IOException e) {}
+		} else if (this.listeners[index].socket() != socket) {
+			return; // not one of ours
+		}
+		free(index);
+	}
+
+	/**
+	 * @return true if the listener is one of this range
+	 */
+	public boolean contains(final ServerSocket socket) {
+		final int index = socket.getLocalPort() - this.first;
+		return index >= 0 && index < this.size;
+	}
+
+	/**
+	 * close all listeners that had been bound in advance
+	 */
+	public void close() {
+		if (this.listeners == null) return;
+		for (int i = 0; i < this.listeners.length; i++) {
+			if (this.listeners[i] != null) try {
+				this.listeners[i].close();
+			} catch (final IOException e) {}
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of ports that are taken right now
+	 */
+	public int usedCount() {
+		int n = 0;
+		for (int i = 0; i < this.used.length(); i++) n += Long.bitCount(this.used.get(i));
+		return n;
+	}
+
+	public long acquiredCount() {
+		return this.acquiredCount.get();
+	}
+
+	/**
+	 * @return the number of requests that found all ports taken
+	 */
+	public long exhaustedCount() {
+		return this.exhaustedCount.get();
+	}
+
+}
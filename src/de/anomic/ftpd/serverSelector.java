@@ -0,0 +1,324 @@
+/**
+ *  serverSelector
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverSelector:
+
+ An event-driven alternative to the thread-per-session model of the serverCore.
+ All control connections are registered at a small number of selector loops.
+ A loop reads whatever a client sends into the session's line buffer and
+ hands the session over to a worker thread only when at least one complete
+ command line is available. While a worker executes the commands, the
+ connection is not watched by the selector; afterwards it is registered
+ again for reading. Idle sessions therefore do not need a thread at all.
+ The commands are executed by the same serverCore.Session methods that are
+ used in the thread-per-session model.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class serverSelector {
+
+	private final loop[] loops; // the selector loops
+	private final ExecutorService workers; // executes the commands
+	private int nextLoop; // round-robin pointer for new sessions
+
+	/**
+	 * @param selectorCount number of selector loops
+	 * @param workerCount max. number of threads executing commands; 0 = unlimited
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public serverSelector(final int selectorCount, final int workerCount) throws IOException {
+		final ThreadFactory workerFactory = new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "serverSelector worker " + (++this.count));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		this.workers = (workerCount > 0)
+				? Executors.newFixedThreadPool(workerCount, workerFactory)
+				: Executors.newCachedThreadPool(workerFactory);
+		this.loops = new loop[Math.max(1, selectorCount)];
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i] = new loop();
+			final Thread t = new Thread(this.loops[i], "serverSelector " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		this.nextLoop = 0;
+	}
+
+	/**
+	 * take over a new session: the greeting is sent by a worker,
+	 * afterwards the session is watched by one of the selector loops
+	 * @param session a session with a non-blocking control channel
+	 */
+	public void register(final serverCore.Session session) {
+		final loop l;
+		synchronized (this) {
+			l = this.loops[this.nextLoop];
+			this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+		}
+		final connection c = new connection(session, l);
+		session.setResumption(new Runnable() {
+			public void run() {
+				serverSelector.this.workers.execute(c);
+			}
+		});
+		this.workers.execute(new Runnable() {
+			public void run() {
+				if (!session.begin()) {
+					session.close();
+				} else if (session.suspended()) {
+					session.park();
+				} else {
+					l.watch(c);
+				}
+			}
+		});
+	}
+
+	/**
+	 * run a task on a worker, i.e. the set-up of a new connection
+	 */
+	public void execute(final Runnable task) {
+		this.workers.execute(task);
+	}
+
+	// a control connection that is served by the selector
+	private class connection implements Runnable {
+
+		private final serverCore.Session session;
+		private final loop loop;
+
+		public connection(final serverCore.Session session, final loop loop) {
+			this.session = session;
+			this.loop = loop;
+		}
+
+		/**
+		 * read from the channel; called by the selector loop
+		 * @return true if the session's line decoder holds at least one complete line
+		 * @throws IOException if the client closed the connection or the line is too long
+		 */
+		public boolean read() throws IOException {
+			if (this.session.in.fill(this.session.controlChannel) < 0) throw new IOException("connection closed");
+			return this.session.in.hasLine();
+		}
+
+		/**
+		 * execute all complete lines; called by a worker
+		 */
+		public void run() {
+			final serverLineDecoder in = this.session.in;
+			int l;
+			try {
+				while ((l = in.nextLine()) >= 0) {
+					if (!this.session.execute(in.buffer(), in.lineStart(), l)) {
+						close();
+						return;
+					}
+					if (this.session.suspended()) {
+						// the reply is delayed; the scheduler hands the session back to a worker
+						this.session.park();
+						return;
+					}
+				}
+			} catch (final IOException e) {
+				// connection interruption, or a client that does not read its replies
+				close();
+				return;
+			}
+			this.loop.watch(this);
+		}
+
+		// the socket of a registered channel is only closed when the selector of the
+		// loop runs the next time and drops the key; the loop must not wait for an event
+		private void close() {
+			this.session.close();
+			this.loop.selector.wakeup();
+		}
+
+	}
+
+	// a selector loop that waits for incoming command lines
+	private class loop implements Runnable {
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<connection> pending; // connections to be (re-)registered
+
+		public loop() throws IOException {
+			this.selector = Selector.open();
+			this.pending = new ConcurrentLinkedQueue<connection>();
+		}
+
+		public void watch(final connection c) {
+			this.pending.add(c);
+			this.selector.wakeup();
+		}
+
+		public void run() {
+			connection c;
+			SelectionKey key;
+			Iterator<SelectionKey> i;
+			while (true) {
+				try {
+					this.selector.select();
+				} catch (final IOException e) {
+					System.err.println("ERROR: (internal) serverSelector: " + e.getMessage());
+					continue;
+				}
+				// take over connections that wait for input again
+				while ((c = this.pending.poll()) != null) {
+					key = c.session.controlChannel.keyFor(this.selector);
+					try {
+						if (key == null) {
+							c.session.controlChannel.register(this.selector, SelectionKey.OP_READ, c);
+						} else {
+							key.interestOps(SelectionKey.OP_READ);
+						}
+					} catch (final ClosedChannelException e) {
+						c.session.close();
+					} catch (final java.nio.channels.CancelledKeyException e) {
+						c.session.close();
+					}
+				}
+				// read from all connections that have data
+				i = this.selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					key = i.next();
+					i.remove();
+					c = (connection) key.attachment();
+					try {
+						if (key.isReadable() && c.read()) {
+							// stop watching while a worker executes the commands
+							key.interestOps(0);
+							serverSelector.this.workers.execute(c);
+						}
+					} catch (final IOException e) {
+						key.cancel();
+						c.session.close();
+					} catch (final java.nio.channels.CancelledKeyException e) {
+						c.session.close();
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * an output stream that writes to a non-blocking channel. If the client does
+	 * not read, the writer waits for the channel to become writable, but not longer
+	 * than the write timeout; then the channel is closed and the session ends.
+	 * The stream must be closed, even by another thread while a write waits,
+	 * to free the selector that waits for the client.
+	 */
+	public static class channelOutputStream extends OutputStream {
+
+		private final SocketChannel channel;
+		private final long timeout; // max. time in milliseconds without progress; 0 = unlimited
+		private Selector writable; // waits until the client reads; opened when the send buffer is full for the first time
+		private final Object lock; // guards writable and closed; write() holds the stream's monitor while it waits
+		private boolean closed; // no selector is opened any more
+
+		public channelOutputStream(final SocketChannel channel) {
+			this(channel, 0);
+		}
+
+		/**
+		 * @param timeout max. time in milliseconds that a write waits for the client to read; 0 = unlimited
+		 */
+		public channelOutputStream(final SocketChannel channel, final long timeout) {
+			this.channel = channel;
+			this.timeout = timeout;
+			this.writable = null;
+			this.lock = new Object();
+			this.closed = false;
+		}
+
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+			final ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			long deadline = 0;
+			long now;
+			while (bb.hasRemaining()) {
+				if (this.channel.write(bb) > 0) {
+					deadline = 0;
+					continue;
+				}
+				// the send buffer is full; the client does not read
+				now = System.currentTimeMillis();
+				if (deadline == 0) {
+					deadline = now + this.timeout;
+				} else if (this.timeout > 0 && now >= deadline) {
+					close();
+					throw new SocketTimeoutException("client does not read, no progress for " + this.timeout + " milliseconds");
+				}
+				final Selector s;
+				synchronized (this.lock) {
+					if (this.closed) throw new IOException("control connection closed");
+					if (this.writable == null) {
+						this.writable = Selector.open();
+						this.channel.register(this.writable, SelectionKey.OP_WRITE);
+					}
+					s = this.writable;
+				}
+				try {
+					s.select((this.timeout > 0) ? Math.max(1, deadline - now) : 0);
+					s.selectedKeys().clear();
+				} catch (final ClosedSelectorException e) {
+					throw new IOException("control connection closed");
+				}
+				if (Thread.interrupted()) throw new java.io.InterruptedIOException("interrupted while waiting for the client");
+			}
+		}
+
+		// not synchronized with write: a close by the session wakes a waiting writer
+		public void close() throws IOException {
+			synchronized (this.lock) {
+				this.closed = true;
+				if (this.writable != null) this.writable.close();
+			}
+			this.channel.close();
+		}
+
+	}
+
+}
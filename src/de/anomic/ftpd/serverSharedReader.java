@@ -0,0 +1,256 @@
+/**
+ *  serverSharedReader
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverSharedReader:
+
+ Downloads of the same file that run at the same time share one reader.
+ The file is opened once and read sequentially in chunks of the largest
+ buffer size of the serverBufferPool; the last chunks are kept in a
+ sliding window, and every download sends the chunks of the window that
+ it needs from memory. The download that is ahead of all others reads the
+ next chunk, the others find it already read. When the window moves on,
+ the oldest chunk is dropped; a download that still needs it has fallen
+ too far behind and reads the rest of the file on its own with positional
+ reads. A slow client therefore never holds back the fast ones, and the
+ window does not grow with the number or the speed of the clients.
+ A chunk that is dropped while a download still sends it is given back
+ to the pool after that download is done with it.
+ Downloads share a reader if the file has the same path, size and
+ modification time; a file that is changed gets a new reader.
+ */
+
+package de.anomic.ftpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class serverSharedReader {
+
+	private static final int chunkSize = serverBufferPool.maxSize;
+
+	private final serverBufferPool buffers; // the chunks are taken from the pool
+	private final int window; // max. number of chunks that are kept per file
+	private final HashMap<String, reader> readers; // path, size and modification time -> reader
+	private final AtomicLong sharedCount; // chunks that had been sent from memory
+	private final AtomicLong readCount; // chunks that had been read from the file
+	private final AtomicLong fallbackCount; // downloads that had fallen out of the window
+
+	/**
+	 * a part of the file
+	 */
+	public static class chunk {
+		final long index; // position / chunkSize
+		final ByteBuffer buffer;
+		int length = 0; // valid bytes in the buffer
+		boolean loaded = false; // the bytes have been read
+		IOException failure = null; // the read has failed
+		int users = 0; // downloads that send the chunk right now
+		boolean dropped = false; // no longer in the window
+		chunk(final long index, final ByteBuffer buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return the bytes from a position of the file to the end of the chunk; empty at the end of the file
+		 */
+		public ByteBuffer view(final long position) {
+			final ByteBuffer b = this.buffer.duplicate();
+			b.limit(this.length);
+			b.position((int) Math.max(0, Math.min(position - this.index * chunkSize, this.length)));
+			return b;
+		}
+	}
+
+	/**
+	 * the shared reader of a file; every download holds it from open() until close()
+	 */
+	public class reader {
+
+		private final String key;
+		private final FileChannel channel;
+		private final long size;
+		private final ArrayList<chunk> chunks; // the window, in the order of the file
+		private long first; // index of the oldest chunk in the window
+		private int downloads; // downloads that use this reader; guarded by serverSharedReader.this
+
+		private reader(final String key, final FileChannel channel, final long size) {
+			this.key = key;
+			this.channel = channel;
+			this.size = size;
+			this.chunks = new ArrayList<chunk>(serverSharedReader.this.window);
+			this.first = 0;
+			this.downloads = 0;
+		}
+
+		/**
+		 * @return the file; for positional reads of a download that had fallen behind
+		 */
+		public FileChannel channel() {
+			return this.channel;
+		}
+
+		public long size() {
+			return this.size;
+		}
+
+		/**
+		 * get the chunk of a position of the file from the window; the next chunk is
+		 * read if the position is right behind the window
+		 * @return the chunk, or null if the position is not in the window; then the
+		 *  download shall read the file on its own. The chunk must be given back with unpin().
+		 */
+		public chunk pin(final long position) throws IOException {
+			final long index = position / chunkSize;
+			chunk c;
+			boolean load = false;
+			synchronized (this) {
+				final long next = this.first + this.chunks.size();
+				if (index < this.first || index > next) {
+					serverSharedReader.this.fallbackCount.incrementAndGet();
+					return null;
+				}
+				if (index == next) {
+					// this download is ahead of all others: it reads the next chunk
+					c = new chunk(index, serverSharedReader.this.buffers.acquireForChannel(chunkSize));
+					this.chunks.add(c);
+					load = true;
+					while (this.chunks.size() > serverSharedReader.this.window) drop(this.chunks.remove(0));
+					this.first = this.chunks.get(0).index;
+				} else {
+					c = this.chunks.get((int) (index - this.first));
+				}
+				c.users++;
+				while (!load && !c.loaded && c.failure == null) {
+					try {
+						wait();
+					} catch (final InterruptedException e) {
+						c.failure = new IOException("interrupted");
+					}
+				}
+			}
+			if (load) {
+				IOException failure = null;
+				try {
+					long p = index * chunkSize;
+					int n;
+					while (c.buffer.hasRemaining() && (n = this.channel.read(c.buffer, p)) > 0) p += n;
+				} catch (final IOException e) {
+					failure = e;
+				}
+				synchronized (this) {
+					c.length = c.buffer.position();
+					c.loaded = failure == null;
+					c.failure = failure;
+					notifyAll();
+				}
+				serverSharedReader.this.readCount.incrementAndGet();
+			} else {
+				serverSharedReader.this.sharedCount.incrementAndGet();
+			}
+			if (c.failure != null) {
+				unpin(c);
+				throw c.failure;
+			}
+			return c;
+		}
+
+		/**
+		 * a download is done with a chunk from pin()
+		 */
+		public synchronized void unpin(final chunk c) {
+			c.users--;
+			if (c.dropped && c.users == 0) serverSharedReader.this.buffers.release(c.buffer);
+		}
+
+		private void drop(final chunk c) {
+			c.dropped = true;
+			if (c.users == 0) serverSharedReader.this.buffers.release(c.buffer);
+		}
+
+		/**
+		 * a download is finished
+		 */
+		public void close() {
+			synchronized (serverSharedReader.this) {
+				if (--this.downloads > 0) return;
+				serverSharedReader.this.readers.remove(this.key);
+			}
+			// nobody can find this reader any more
+			synchronized (this) {
+				for (int i = 0; i < this.chunks.size(); i++) drop(this.chunks.get(i));
+				this.chunks.clear();
+			}
+			try {
+				this.channel.close();
+			} catch (final IOException e) {}
+		}
+	}
+
+	/**
+	 * @param buffers the pool of the server; the chunks are its largest buffers
+	 * @param window max. number of chunks that are kept per file
+	 */
+	public serverSharedReader(final serverBufferPool buffers, final int window) {
+		this.buffers = buffers;
+		this.window = Math.max(2, window);
+		this.readers = new HashMap<String, reader>();
+		this.sharedCount = new AtomicLong(0);
+		this.readCount = new AtomicLong(0);
+		this.fallbackCount = new AtomicLong(0);
+	}
+
+	/**
+	 * start a download; it shares the reader with the running downloads of the same file
+	 * @return the reader; it must be closed when the download is finished
+	 */
+	public reader open(final File file) throws IOException {
+		final long size = file.length();
+		final String key = file.getAbsolutePath() + '\n' + size + '\n' + file.lastModified();
+		synchronized (this) {
+			reader r = this.readers.get(key);
+			if (r == null) {
+				r = new reader(key, new FileInputStream(file).getChannel(), size);
+				this.readers.put(key, r);
+			}
+			r.downloads++;
+			return r;
+		}
+	}
+
+	public long sharedCount() {
+		return this.sharedCount.get();
+	}
+
+	public long readCount() {
+		return this.readCount.get();
+	}
+
+	public long fallbackCount() {
+		return this.fallbackCount.get();
+	}
+
+}
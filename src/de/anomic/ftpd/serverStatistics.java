@@ -0,0 +1,294 @@
+/**
+ *  serverStatistics
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverStatistics:
+
+ Counters of the serverCore and the latency of every command. Latencies
+ are recorded in microseconds in histograms with logarithmic buckets: the
+ values below 32 have a bucket each, and every further power of two is
+ split into 16 buckets, so a recorded value is kept with a precision of
+ about 3 percent over the whole range, at a fixed size of the histogram.
+ Recording is one increment of an array element. The histograms are kept
+ in stripes, and a thread records into the stripe of its thread id;
+ threads therefore rarely touch the same memory, and the number of
+ histograms does not grow with the number of threads. Histograms can be
+ added, so a report merges the stripes of a command into one histogram
+ and reads the percentiles from it.
+ */
+
+package de.anomic.ftpd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class serverStatistics {
+
+	private final String[] names; // the names of the recorded commands
+	private final int stripeMask; // number of stripes - 1
+	private final AtomicReferenceArray<histogram> histograms; // [stripe * names.length + command]; created on first use
+	private final histogram[] transfers; // duration of data transfers, per stripe
+	private final long started; // time when the statistics had been created
+	private final AtomicLong sessionCount; // sessions that had been started
+	private final AtomicLong closedCount; // sessions that had terminated
+	private final AtomicLong loginCount; // successful log-ins
+	private final AtomicLong failedLoginCount; // failed log-ins
+	private final AtomicLong bytesIn; // bytes received on data connections
+	private final AtomicLong bytesOut; // bytes sent on data connections
+	private final AtomicInteger activeTransfers; // data transfers that are running
+
+	/**
+	 * a latency histogram with logarithmic buckets
+	 */
+	public static class histogram {
+
+		private static final int subBits = 5; // the values below 2^subBits have a bucket each
+		private static final int half = 1 << (subBits - 1); // buckets per further power of two
+		private static final int maxBits = 40; // values of 2^maxBits and more are counted in the last bucket
+		public static final int bucketCount = (maxBits - subBits + 2) * half;
+
+		private final AtomicLongArray counts;
+		private final AtomicLong max;
+		private final AtomicLong sum;
+
+		public histogram() {
+			this.counts = new AtomicLongArray(bucketCount);
+			this.max = new AtomicLong(0);
+			this.sum = new AtomicLong(0);
+		}
+
+		// the bucket of a value
+		private static int index(final long value) {
+			if (value < (1 << subBits)) return (int) Math.max(0, value);
+			final int msb = 63 - Long.numberOfLeadingZeros(value);
+			if (msb >= maxBits) return bucketCount - 1;
+			final int shift = msb - subBits + 1;
+			return (shift + 1) * half + (int) (value >>> shift) - half;
+		}
+
+		// the largest value that falls into a bucket
+		private static long highest(final int index) {
+			if (index < (1 << subBits)) return index;
+			final int shift = index / half - 1;
+			final long sub = index % half + half;
+			return ((sub + 1) << shift) - 1;
+		}
+
+		/**
+		 * count a value
+		 * @param value a latency, i.e. in microseconds
+		 */
+		public void record(final long value) {
+			this.counts.incrementAndGet(index(value));
+			this.sum.addAndGet(value);
+			long m;
+			while (value > (m = this.max.get())) {
+				if (this.max.compareAndSet(m, value)) break;
+			}
+		}
+
+		/**
+		 * add the counts of another histogram to this one
+		 */
+		public void add(final histogram h) {
+			long c;
+			for (int i = 0; i < bucketCount; i++) {
+				c = h.counts.get(i);
+				if (c != 0) this.counts.addAndGet(i, c);
+			}
+			this.sum.addAndGet(h.sum.get());
+			long m;
+			while (h.max.get() > (m = this.max.get())) {
+				if (this.max.compareAndSet(m, h.max.get())) break;
+			}
+		}
+
+		public long count() {
+			long n = 0;
+			for (int i = 0; i < bucketCount; i++) n += this.counts.get(i);
+			return n;
+		}
+
+		public long max() {
+			return this.max.get();
+		}
+
+		public long sum() {
+			return this.sum.get();
+		}
+
+		/**
+		 * @param percentile i.e. 99.9
+		 * @return the value below or at which the given percentage of all values lies; 0 if the histogram is empty
+		 */
+		public long percentile(final double percentile) {
+			final long total = count();
+			if (total == 0) return 0;
+			final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+			long n = 0;
+			for (int i = 0; i < bucketCount; i++) {
+				n += this.counts.get(i);
+				if (n >= rank) return Math.min(highest(i), this.max.get());
+			}
+			return this.max.get();
+		}
+	}
+
+	/**
+	 * @param names the names of the commands that are recorded, i.e. the verbs of the command table
+	 */
+	public serverStatistics(final String[] names) {
+		this.names = names;
+		int n = 1;
+		while (n < 64 && n < 2 * Runtime.getRuntime().availableProcessors()) n <<= 1;
+		this.stripeMask = n - 1;
+		this.histograms = new AtomicReferenceArray<histogram>(n * names.length);
+		this.transfers = new histogram[n];
+		for (int i = 0; i < n; i++) this.transfers[i] = new histogram();
+		this.started = System.currentTimeMillis();
+		this.sessionCount = new AtomicLong(0);
+		this.closedCount = new AtomicLong(0);
+		this.loginCount = new AtomicLong(0);
+		this.failedLoginCount = new AtomicLong(0);
+		this.bytesIn = new AtomicLong(0);
+		this.bytesOut = new AtomicLong(0);
+		this.activeTransfers = new AtomicInteger(0);
+	}
+
+	// the stripe of the current thread
+	private int stripe() {
+		final long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & this.stripeMask;
+	}
+
+	/**
+	 * record the latency of a command
+	 * @param command the number of the command in the names
+	 * @param nanos the execution time in nanoseconds
+	 */
+	public void command(final int command, final long nanos) {
+		final int i = stripe() * this.names.length + command;
+		histogram h = this.histograms.get(i);
+		if (h == null) {
+			this.histograms.compareAndSet(i, null, new histogram());
+			h = this.histograms.get(i);
+		}
+		h.record(nanos / 1000);
+	}
+
+	/**
+	 * a data transfer begins; it must be finished with transfer()
+	 */
+	public void transferStarted() {
+		this.activeTransfers.incrementAndGet();
+	}
+
+	/**
+	 * record a finished data transfer
+	 * @param incoming true if the bytes had been received from the client
+	 * @param bytes the number of transferred bytes
+	 * @param nanos the duration of the transfer in nanoseconds
+	 */
+	public void transfer(final boolean incoming, final long bytes, final long nanos) {
+		this.activeTransfers.decrementAndGet();
+		if (incoming) this.bytesIn.addAndGet(bytes); else this.bytesOut.addAndGet(bytes);
+		this.transfers[stripe()].record(nanos / 1000);
+	}
+
+	public void sessionStarted() {
+		this.sessionCount.incrementAndGet();
+	}
+
+	public void sessionClosed() {
+		this.closedCount.incrementAndGet();
+	}
+
+	public void login() {
+		this.loginCount.incrementAndGet();
+	}
+
+	public void failedLogin() {
+		this.failedLoginCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the latencies of a command, merged from all stripes
+	 */
+	public histogram command(final int command) {
+		final histogram m = new histogram();
+		histogram h;
+		for (int s = 0; s <= this.stripeMask; s++) {
+			h = this.histograms.get(s * this.names.length + command);
+			if (h != null) m.add(h);
+		}
+		return m;
+	}
+
+	/**
+	 * @return the durations of the data transfers, merged from all stripes
+	 */
+	public histogram transfers() {
+		final histogram m = new histogram();
+		for (int s = 0; s <= this.stripeMask; s++) m.add(this.transfers[s]);
+		return m;
+	}
+
+	public String name(final int command) {
+		return this.names[command];
+	}
+
+	public int size() {
+		return this.names.length;
+	}
+
+	public long started() {
+		return this.started;
+	}
+
+	public long sessionCount() {
+		return this.sessionCount.get();
+	}
+
+	public long runningCount() {
+		return this.sessionCount.get() - this.closedCount.get();
+	}
+
+	public long loginCount() {
+		return this.loginCount.get();
+	}
+
+	public long failedLoginCount() {
+		return this.failedLoginCount.get();
+	}
+
+	public int activeTransfers() {
+		return this.activeTransfers.get();
+	}
+
+	public long bytesIn() {
+		return this.bytesIn.get();
+	}
+
+	public long bytesOut() {
+		return this.bytesOut.get();
+	}
+
+}
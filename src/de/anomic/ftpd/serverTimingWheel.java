@@ -0,0 +1,212 @@
+/**
+ *  serverTimingWheel
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ serverTimingWheel:
+
+ A hashed timing wheel for the time-outs of many sessions. The wheel is a
+ ring of slots, each slot a list of timers; a tick advances the cursor by
+ one slot and only looks at the timers of that slot. A timer that lies
+ more than one revolution ahead counts down its remaining rounds.
+ Timers are not moved when a session is active: a session only writes a
+ new deadline into its timer, and when the wheel meets the timer it either
+ fires it or re-inserts it for the remaining time. Activity therefore
+ costs one volatile write, and a tick costs the same no matter how many
+ sessions are connected. Only a deadline that is earlier than the slot of
+ the timer, i.e. a stall check that replaces a long idle time-out, moves
+ the timer: it is handed to the ticking thread again, which takes it out
+ of its slot and inserts it for the new deadline.
+ The slot lists are only touched by the thread that calls tick(); new
+ timers are handed over through a concurrent queue.
+ */
+
+package de.anomic.ftpd;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class serverTimingWheel {
+
+	private final timer[] slots; // heads of the slot lists
+	private final long tickMillis; // time covered by one slot
+	private final ConcurrentLinkedQueue<timer> pending; // timers to be inserted with the next tick
+	private int cursor; // the slot of the current tick
+
+	/**
+	 * a time-out that can be armed on a wheel; expired() is called by the ticking thread
+	 */
+	public static abstract class timer {
+
+		private volatile long deadline; // absolute time in milliseconds; 0 = not armed
+		private boolean linked; // the timer is in a slot list or in the pending queue
+		private boolean queued; // the timer is in the pending queue
+		private long due; // the time when the wheel reaches the slot of the timer; guarded by the timer
+		private int slot = -1; // the slot list that holds the timer; -1 = none
+		private long rounds; // number of revolutions before the timer's slot is due
+		private timer prev, next; // slot list
+
+		/**
+		 * @return the time when the timer fires, or 0 if it is not armed
+		 */
+		public long deadline() {
+			return this.deadline;
+		}
+
+		/**
+		 * called when the deadline has passed; the timer is not armed any more
+		 * unless expired() arms it again
+		 * @param now the current time
+		 */
+		protected abstract void expired(long now);
+	}
+
+	/**
+	 * @param slotCount number of slots of the wheel
+	 * @param tickMillis time between two ticks in milliseconds
+	 */
+	public serverTimingWheel(final int slotCount, final long tickMillis) {
+		this.slots = new timer[Math.max(1, slotCount)];
+		this.tickMillis = Math.max(1, tickMillis);
+		this.pending = new ConcurrentLinkedQueue<timer>();
+		this.cursor = 0;
+	}
+
+	public long tickMillis() {
+		return this.tickMillis;
+	}
+
+	/**
+	 * arm a timer or move its deadline
+	 * @param t the timer
+	 * @param deadline the absolute time in milliseconds when the timer shall fire
+	 */
+	public void schedule(final timer t, final long deadline) {
+		t.deadline = Math.max(1, deadline);
+		synchronized (t) {
+			if (t.linked) {
+				// the wheel finds a later deadline when it reaches the timer; an earlier one must be moved
+				if (t.queued || t.deadline >= t.due) return;
+			}
+			t.linked = true;
+			t.queued = true;
+		}
+		this.pending.add(t);
+	}
+
+	/**
+	 * disarm a timer; it is removed from its slot at the next time the wheel passes it
+	 */
+	public void cancel(final timer t) {
+		t.deadline = 0;
+	}
+
+	/**
+	 * advance the wheel by one slot; must always be called by the same thread
+	 * @param now the current time
+	 */
+	public void tick(final long now) {
+		// take over new timers and timers whose deadline has moved before their slot
+		timer t;
+		while ((t = this.pending.poll()) != null) {
+			synchronized (t) {
+				t.queued = false;
+				if (!t.linked) continue; // had expired in its old slot
+			}
+			if (t.slot >= 0) unlink(t);
+			insert(t, now);
+		}
+		this.cursor = (this.cursor + 1) % this.slots.length;
+		t = this.slots[this.cursor];
+		timer next;
+		long deadline;
+		while (t != null) {
+			next = t.next;
+			if (t.rounds > 0) {
+				t.rounds--;
+			} else {
+				unlink(t);
+				deadline = t.deadline;
+				if (deadline == 0) {
+					release(t);
+				} else if (deadline <= now) {
+					if (release(t)) t.expired(now);
+				} else {
+					insert(t, now);
+				}
+			}
+			t = next;
+		}
+	}
+
+	// remove a timer from its slot list
+	private void unlink(final timer t) {
+		if (t.prev == null) {
+			this.slots[t.slot] = t.next;
+		} else {
+			t.prev.next = t.next;
+		}
+		if (t.next != null) t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.slot = -1;
+	}
+
+	// put a timer into the slot of its deadline
+	private void insert(final timer t, final long now) {
+		final long ticks;
+		synchronized (t) {
+			final long deadline = t.deadline;
+			if (deadline == 0) {
+				ticks = 0;
+			} else {
+				// a due timer is found with the next tick
+				ticks = Math.max(1, (deadline - now + this.tickMillis - 1) / this.tickMillis);
+				t.due = now + ticks * this.tickMillis;
+			}
+		}
+		if (ticks == 0) {
+			release(t);
+			return;
+		}
+		final int slot = (int) ((this.cursor + ticks) % this.slots.length);
+		t.rounds = (ticks - 1) / this.slots.length;
+		t.slot = slot;
+		t.prev = null;
+		t.next = this.slots[slot];
+		if (t.next != null) t.next.prev = t;
+		this.slots[slot] = t;
+	}
+
+	// mark a timer as not linked; returns false if it was armed again in between
+	private boolean release(final timer t) {
+		synchronized (t) {
+			if (t.deadline != 0 && t.deadline > System.currentTimeMillis()) {
+				// re-armed concurrently: keep it on the wheel
+				if (!t.queued) {
+					t.queued = true;
+					this.pending.add(t);
+				}
+				return false;
+			}
+			t.linked = false;
+			t.deadline = 0;
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/**
+ *  serverTimingWheelTest
+ *  Copyright 2026 by the AnomicFTPD contributors
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.anomic.ftpd;
+
+/**
+ * checks that a session timer fires at the stall time-out of a transfer
+ * when the idle time-out is much longer; run with 'ant test'
+ */
+public class serverTimingWheelTest {
+
+	private static final long tickMillis = 10;
+	private static final long idleTimeout = 900000;
+	private static final long stallTimeout = 300;
+
+	private static class probe extends serverTimingWheel.timer {
+		volatile long fired = 0;
+		protected void expired(final long now) {
+			this.fired = now;
+		}
+	}
+
+	public static void main(final String[] args) throws InterruptedException {
+		final serverTimingWheel wheel = new serverTimingWheel(512, tickMillis);
+		final probe t = new probe();
+
+		// a session waits for its next command
+		long now = System.currentTimeMillis();
+		wheel.schedule(t, now + idleTimeout);
+		wheel.tick(now);
+
+		// a transfer starts: the stall check replaces the idle time-out
+		Thread.sleep(tickMillis);
+		now = System.currentTimeMillis();
+		final long stallDeadline = now + stallTimeout;
+		wheel.schedule(t, stallDeadline);
+
+		final long limit = stallDeadline + 10 * stallTimeout;
+		while (t.fired == 0 && now < limit) {
+			wheel.tick(now);
+			Thread.sleep(tickMillis);
+			now = System.currentTimeMillis();
+		}
+
+		if (t.fired == 0) {
+			fail("the stall time-out did not fire within " + (10 * stallTimeout) + " ms after its deadline");
+		}
+		if (t.fired < stallDeadline) {
+			fail("the stall time-out fired " + (stallDeadline - t.fired) + " ms before its deadline");
+		}
+		if (t.fired > stallDeadline + 3 * tickMillis) {
+			fail("the stall time-out fired " + (t.fired - stallDeadline) + " ms after its deadline");
+		}
+		if (t.deadline() != 0) fail("the timer is still armed after it fired");
+		System.out.println("serverTimingWheelTest: stall time-out fired " + (t.fired - stallDeadline) + " ms after its deadline");
+	}
+
+	private static void fail(final String message) {
+		System.err.println("serverTimingWheelTest: " + message);
+		System.exit(1);
+	}
+
+}